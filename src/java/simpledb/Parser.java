@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -63,6 +65,26 @@ public class Parser {
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
+        } else if (wx.getOperator().equals("IN") || wx.getOperator().equals("NOT IN")) {
+            // x IN (subquery): a semi-join, or an anti-join for NOT IN
+            if (wx.nbOperands() != 2 || !(wx.getOperand(0) instanceof ZConstant)
+                    || ((ZConstant) wx.getOperand(0)).getType() != ZConstant.COLUMNNAME
+                    || !(wx.getOperand(1) instanceof ZQuery)) {
+                throw new simpledb.ParsingException(
+                        "Only IN expressions of the form field IN (subquery) are supported.");
+            }
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, (ZQuery) wx.getOperand(1));
+            OpIterator pp = sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+            lp.addSemiJoin(((ZConstant) wx.getOperand(0)).getValue(), pp,
+                    wx.getOperator().equals("NOT IN"));
+        } else if (wx.getOperator().equals("EXISTS") && wx.nbOperands() == 1
+                && wx.getOperand(0) instanceof ZQuery) {
+            processExists(tid, (ZQuery) wx.getOperand(0), lp, false);
+        } else if (wx.getOperator().equals("NOT") && wx.nbOperands() == 1
+                && wx.getOperand(0) instanceof ZExpression
+                && ((ZExpression) wx.getOperand(0)).getOperator().equals("EXISTS")
+                && ((ZExpression) wx.getOperand(0)).getOperand(0) instanceof ZQuery) {
+            processExists(tid, (ZQuery) ((ZExpression) wx.getOperand(0)).getOperand(0), lp, true);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -137,6 +159,87 @@ public class Parser {
 
     }
 
+    /**
+     * Plan [NOT] EXISTS (subquery) as a semi-join (or anti-join) of the
+     * outer query with the subquery. The subquery must be correlated by an
+     * equality between one of its fields and a field of the outer query,
+     * qualified with an alias the subquery does not use; that equality is
+     * taken out of the subquery, which then selects its side of it, and
+     * becomes the join predicate.
+     */
+    private void processExists(TransactionId tid, ZQuery sub, LogicalPlan lp, boolean anti)
+            throws simpledb.ParsingException, IOException, ParseException {
+        Set<String> subAliases = new HashSet<>();
+        @SuppressWarnings("unchecked")
+        List<ZFromItem> from = sub.getFrom();
+        for (ZFromItem fromIt : from)
+            subAliases.add(fromIt.getAlias() != null ? fromIt.getAlias() : fromIt.getTable());
+
+        List<ZExp> conjuncts = new ArrayList<>();
+        if (sub.getWhere() != null)
+            addConjuncts(sub.getWhere(), conjuncts);
+        String outerField = null, innerField = null;
+        for (Iterator<ZExp> it = conjuncts.iterator(); it.hasNext() && outerField == null; ) {
+            ZExp e = it.next();
+            if (!(e instanceof ZExpression) || !((ZExpression) e).getOperator().equals("=")
+                    || ((ZExpression) e).nbOperands() != 2)
+                continue;
+            ZExpression eq = (ZExpression) e;
+            if (!(eq.getOperand(0) instanceof ZConstant) || !(eq.getOperand(1) instanceof ZConstant))
+                continue;
+            ZConstant c1 = (ZConstant) eq.getOperand(0), c2 = (ZConstant) eq.getOperand(1);
+            if (c1.getType() != ZConstant.COLUMNNAME || c2.getType() != ZConstant.COLUMNNAME)
+                continue;
+            boolean outer1 = isOuterField(c1.getValue(), subAliases);
+            boolean outer2 = isOuterField(c2.getValue(), subAliases);
+            if (outer1 == outer2)
+                continue;
+            outerField = outer1 ? c1.getValue() : c2.getValue();
+            innerField = outer1 ? c2.getValue() : c1.getValue();
+            it.remove();
+        }
+        if (outerField == null) {
+            throw new simpledb.ParsingException(
+                    "EXISTS is only supported for a subquery with an equality between one of its fields and a field of the outer query.");
+        }
+
+        ZQuery q = new ZQuery();
+        Vector<ZSelectItem> select = new Vector<>();
+        select.add(new ZSelectItem(innerField));
+        q.addSelect(select);
+        q.addFrom(sub.getFrom());
+        if (conjuncts.size() == 1) {
+            q.addWhere(conjuncts.get(0));
+        } else if (conjuncts.size() > 1) {
+            ZExpression and = new ZExpression("AND");
+            for (ZExp e : conjuncts)
+                and.addOperand(e);
+            q.addWhere(and);
+        }
+        LogicalPlan sublp = parseQueryLogicalPlan(tid, q);
+        OpIterator pp = sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        lp.addSemiJoin(outerField, pp, anti);
+    }
+
+    private static void addConjuncts(ZExp e, List<ZExp> conjuncts) {
+        if (e instanceof ZExpression && ((ZExpression) e).getOperator().equals("AND")) {
+            ZExpression and = (ZExpression) e;
+            for (int i = 0; i < and.nbOperands(); i++)
+                addConjuncts(and.getOperand(i), conjuncts);
+        } else {
+            conjuncts.add(e);
+        }
+    }
+
+    /**
+     * @return true if field is qualified with an alias that is not one of
+     * the tables of the subquery
+     */
+    private static boolean isOuterField(String field, Set<String> subAliases) {
+        int dot = field.indexOf('.');
+        return dot > 0 && !subAliases.contains(field.substring(0, dot));
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -187,23 +290,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +311,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        List<String> aggFields = new ArrayList<>();
+        List<String> aggFuns = new ArrayList<>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +322,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
                 lp.addProjectField(aggField, aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,44 +343,89 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        if (!aggFuns.isEmpty()) {
+            lp.addAggregate(aggFuns, aggFields, groupByFields);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
     }
 
+    /**
+     * @return the plan of the whole statement q, with its LIMIT. The plans
+     * of the subqueries of q are built by parseQueryLogicalPlan alone, as
+     * the LIMIT only applies to the statement.
+     */
+    private LogicalPlan parseStatementLogicalPlan(TransactionId tid, ZQuery q)
+            throws IOException, Zql.ParseException, simpledb.ParsingException {
+        LogicalPlan lp = parseQueryLogicalPlan(tid, q);
+        if (limit != LogicalPlan.NO_LIMIT)
+            lp.setLimit(limit);
+        return lp;
+    }
+
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    // the LIMIT of the statement being processed, see stripLimit
+    private int limit = LogicalPlan.NO_LIMIT;
+
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "^(.*?)\\s+limit\\s+(\\d+)\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Zql does not know the LIMIT clause, so a trailing "LIMIT n" is cut
+     * from the statement before it is parsed, and n is kept in the limit
+     * field until the logical plan is built.
+     *
+     * @return the statement without its LIMIT clause
+     */
+    private String stripLimit(String s) {
+        limit = LogicalPlan.NO_LIMIT;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.matches())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            return s;
+        }
+        return m.group(1) + m.group(3);
+    }
+
+    private static String readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0)
+            bos.write(buf, 0, n);
+        return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+    }
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
-        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        LogicalPlan lp = parseStatementLogicalPlan(tId, s);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,16 +607,18 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                return parseStatementLogicalPlan(tid, (ZQuery) stmt);
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
                     "Invalid SQL expression: \n \t " + e);
+        } finally {
+            limit = LogicalPlan.NO_LIMIT;
         }
 
         throw new simpledb.ParsingException(
@@ -495,8 +639,11 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String sql = stripLimit(readFully(is));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
+            if (limit != LogicalPlan.NO_LIMIT && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException("LIMIT is only supported in SELECT statements");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -561,13 +708,15 @@ public class Parser {
                     .println("Invalid SQL expression: \n \t" + e.getMessage());
         } catch (ParseException | TokenMgrError e) {
             System.out.println("Invalid SQL expression: \n \t " + e);
+        } finally {
+            limit = LogicalPlan.NO_LIMIT;
         }
     }
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit" };
 
     public static void main(String[] argv) throws IOException {
 
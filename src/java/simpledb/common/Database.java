@@ -58,6 +58,8 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        // the old pool may hold committed pages it has not written yet
+        _instance.get()._bufferpool.flushCommittedPages();
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
@@ -2,27 +2,45 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.List;
 import java.util.NoSuchElementException;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, grouped by any number of columns, are
+ * computed together in a single pass over the child.
+ * <p>
+ * If the child is a {@link Gather}, the aggregate is computed in two phases:
+ * each worker thread aggregates its own part of the input, and the partial
+ * aggregates are then merged.
+ * <p>
+ * Nothing is computed until the operator is opened. If the child is known to
+ * return the tuples of each group next to each other (e.g. sorted on the
+ * group-by fields), the aggregate can instead be computed in a single pass
+ * that returns each group as soon as the next one starts, keeping only the
+ * current group in memory.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
-    private Aggregator agg;
-    private OpIterator aggItr;
+    private final int[] afields;
+    private final int[] gfields;
+    private final Aggregator.Op[] aops;
+    private final boolean streaming;
+    private transient Aggregator agg;
+    private transient OpIterator aggItr;
+    private transient BatchOpIterator batchItr;
+    // when streaming: the first tuple of the next group, already read
+    private transient Tuple pending;
+    private transient TupleDesc td;
 
 
     /**
@@ -39,28 +57,108 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield, aop, false);
+    }
+
+    /**
+     * @param sortedInput true if the child returns the tuples of each group
+     *                    next to each other, in which case the groups are
+     *                    aggregated one at a time as they are read
+     * @see #Aggregate(OpIterator, int, int, Aggregator.Op)
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, boolean sortedInput) {
+        this(child, gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield},
+                new int[]{afield}, new Aggregator.Op[]{aop}, sortedInput);
+    }
+
+    /**
+     * Constructor for several aggregates, grouped by several columns. The
+     * output tuples are the group-by fields, in the given order, followed by
+     * the value of each aggregate.
+     *
+     * @param child       The OpIterator that is feeding us tuples.
+     * @param gfields     The columns over which we are grouping the result;
+     *                    empty if there is no grouping
+     * @param afields     The column of each aggregate
+     * @param aops        The aggregation operator of each aggregate
+     * @param sortedInput true if the child returns the tuples of each group
+     *                    next to each other
+     */
+    public Aggregate(OpIterator child, int[] gfields, int[] afields, Aggregator.Op[] aops,
+                     boolean sortedInput) {
         // some code goes here
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need an operator for each aggregate field");
+        this.gfields = gfields.clone();
+        this.afields = afields.clone();
+        this.aops = aops.clone();
         this.child = child;
-        Type type = child.getTupleDesc().getFieldType(afield);
-        Type gtype = gfield == -1 ? null : child.getTupleDesc().getFieldType(gfield);
+        this.streaming = sortedInput && gfields.length > 0;
+        TupleDesc td = child.getTupleDesc();
+        for (int gfield : gfields) {
+            if (td.getFieldType(gfield) == null)
+                throw new IllegalArgumentException("no group-by field " + gfield);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            Type type = td.getFieldType(afields[i]);
+            if (type == null)
+                throw new IllegalArgumentException("no aggregate field " + afields[i]);
+            if (type == Type.STRING_TYPE && aops[i] != Aggregator.Op.COUNT)
+                throw new IllegalArgumentException("only COUNT is supported over strings");
+        }
+    }
+
+    /**
+     * @return true if the groups are aggregated one at a time, in the order
+     * the child returns them
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    private Aggregator newAggregator() {
+        TupleDesc td = child.getTupleDesc();
+        Type[] gtypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gtypes[i] = td.getFieldType(gfields[i]);
+        if (gfields.length > 1 || afields.length > 1)
+            return new MultiAggregator(gfields, gtypes, afields, aops);
+        int gfield = groupField();
+        Type gtype = gfield == Aggregator.NO_GROUPING ? null : gtypes[0];
+        Type type = td.getFieldType(afields[0]);
         if (Type.INT_TYPE == type)
-            agg = new IntegerAggregator(gfield, gtype, afield, aop);
+            return new IntegerAggregator(gfield, gtype, afields[0], aops[0]);
         else if (Type.STRING_TYPE == type)
-            agg = new StringAggregator(gfield, gtype, afield, aop);
+            return new StringAggregator(gfield, gtype, afields[0], aops[0]);
         else throw new UnsupportedOperationException();
-        try {
-            child.open();
-            while (child.hasNext()) {
-                agg.mergeTupleIntoGroup(child.next());
-            }
-            child.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * Merge every tuple of in into a, reading in a batch at a time.
+     */
+    private static void mergeAll(OpIterator in, Aggregator a)
+            throws DbException, TransactionAbortedException {
+        BatchOpIterator batches = TupleToBatchAdapter.of(in);
+        TupleBatch batch;
+        while ((batch = batches.nextBatch()) != null)
+            a.mergeBatchIntoGroup(batch);
+    }
+
+    /**
+     * Two-phase aggregation over a parallel plan: each worker of the Gather
+     * aggregates its part of the input into an aggregator of its own, then
+     * the partial aggregates are merged into agg.
+     */
+    private void aggregateInParallel(Gather in) throws DbException, TransactionAbortedException {
+        List<Aggregator> partials = in.runEach(part -> {
+            Aggregator a = newAggregator();
+            mergeAll(part, a);
+            return a;
+        });
+        for (Aggregator partial : partials) {
+            agg.merge(partial);
+            partial.close();
         }
-        aggItr = agg.iterator();
     }
 
     /**
@@ -70,7 +168,15 @@ public class Aggregate extends Operator {
      */
     public int groupField() {
         // some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the group-by field indexes in the <b>INPUT</b> tuples; empty if
+     * there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
@@ -80,7 +186,7 @@ public class Aggregate extends Operator {
      */
     public String groupFieldName() {
         // some code goes here
-        return gfield == -1 ? null : child.getTupleDesc().getFieldName(gfield);
+        return gfields.length == 0 ? null : child.getTupleDesc().getFieldName(gfields[0]);
     }
 
     /**
@@ -88,7 +194,14 @@ public class Aggregate extends Operator {
      */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
+    }
+
+    /**
+     * @return the field of each aggregate
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
     }
 
     /**
@@ -97,7 +210,7 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        return child.getTupleDesc().getFieldName(afield);
+        return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
@@ -105,7 +218,14 @@ public class Aggregate extends Operator {
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aop;
+        return aops[0];
+    }
+
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -115,8 +235,25 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
-
-        aggItr.open();
+        if (streaming) {
+            child.open();
+            pending = null;
+        } else {
+            agg = newAggregator();
+            if (child instanceof Gather) {
+                aggregateInParallel((Gather) child);
+            } else {
+                child.open();
+                try {
+                    mergeAll(child, agg);
+                } finally {
+                    child.close();
+                }
+            }
+            aggItr = agg.iterator();
+            aggItr.open();
+        }
+        batchItr = null;
         super.open();
     }
 
@@ -129,22 +266,82 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
+        if (streaming)
+            return nextGroup();
         if (aggItr.hasNext())
             return aggItr.next();
         return null;
     }
 
+    /**
+     * Read the tuples of the next group from the child, up to the first
+     * tuple of the group after it.
+     *
+     * @return the aggregate of the group, or null if there is none left
+     */
+    private Tuple nextGroup() throws DbException, TransactionAbortedException {
+        if (pending == null) {
+            if (!child.hasNext())
+                return null;
+            pending = child.next();
+        }
+        Tuple first = pending;
+        GroupState[] states = new GroupState[afields.length];
+        for (int i = 0; i < states.length; i++)
+            states[i] = new GroupState();
+        Tuple t = pending;
+        pending = null;
+        while (true) {
+            for (int i = 0; i < afields.length; i++) {
+                Field v = t.getField(afields[i]);
+                if (v instanceof IntField)
+                    states[i].add(((IntField) v).getValue());
+                else
+                    states[i].count++;
+            }
+            if (!child.hasNext())
+                break;
+            t = child.next();
+            if (!sameGroup(first, t)) {
+                pending = t;
+                break;
+            }
+        }
+        Tuple result = new Tuple(getTupleDesc());
+        for (int i = 0; i < gfields.length; i++)
+            result.setField(i, first.getField(gfields[i]));
+        for (int i = 0; i < afields.length; i++)
+            result.setField(gfields.length + i, new IntField(states[i].result(aops[i])));
+        return result;
+    }
+
+    private boolean sameGroup(Tuple a, Tuple b) {
+        for (int gfield : gfields) {
+            if (!a.getField(gfield).equals(b.getField(gfield)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the results again. The aggregate is not computed again, except
+     * when streaming, where the child is read again.
+     */
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        aggItr = agg.iterator();
-        aggItr.open();
+        if (streaming) {
+            child.rewind();
+            pending = null;
+        } else {
+            aggItr.rewind();
+        }
+        batchItr = null;
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group-by fields, named
+     * as in the child, followed by a field per aggregate. If there is no
+     * group by field, this will only have the aggregate columns.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -153,26 +350,49 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        TupleDesc td;
-        String[] names;
-        Type[] types;
-        Type aType = child.getTupleDesc().getFieldType(afield);
-        Type gType = child.getTupleDesc().getFieldType(gfield);
-        if (gfield == -1) {
-            names = new String[]{"aggregateField"};
-            types = new Type[]{aType};
-        } else {
-            names = new String[]{"groupField", "aggregateField"};
-            types = new Type[]{gType, aType};
+        if (td == null) {
+            TupleDesc childTd = child.getTupleDesc();
+            int n = gfields.length + afields.length;
+            String[] names = new String[n];
+            Type[] types = new Type[n];
+            for (int i = 0; i < gfields.length; i++) {
+                names[i] = childTd.getFieldName(gfields[i]);
+                types[i] = childTd.getFieldType(gfields[i]);
+            }
+            // every aggregate returns an int, even over strings
+            for (int i = 0; i < afields.length; i++) {
+                names[gfields.length + i] = nameOfAggregatorOp(aops[i]) + "("
+                        + childTd.getFieldName(afields[i]) + ")";
+                types[gfields.length + i] = Type.INT_TYPE;
+            }
+            td = new TupleDesc(types, names);
         }
-        td = new TupleDesc(types, names);
         return td;
     }
 
+    /**
+     * Returns the aggregate results a batch at a time.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (batchItr == null)
+            batchItr = streaming ? new TupleToBatchAdapter(this) : TupleToBatchAdapter.of(aggItr);
+        return batchItr.nextBatch();
+    }
+
     public void close() {
         // some code goes here
         super.close();
-        aggItr.close();
+        if (streaming) {
+            child.close();
+            pending = null;
+        }
+        if (aggItr != null)
+            aggItr.close();
+        if (agg != null)
+            agg.close();
+        aggItr = null;
+        agg = null;
+        batchItr = null;
     }
 
     @Override
@@ -185,6 +405,7 @@ public class Aggregate extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         child = children[0];
+        td = null;
     }
 
 }
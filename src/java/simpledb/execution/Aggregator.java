@@ -79,10 +79,39 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate, as if each was
+     * passed to {@link #mergeTupleIntoGroup}.
+     *
+     * @param batch the batch holding the aggregate and group-by fields
+     */
+    default void mergeBatchIntoGroup(TupleBatch batch) {
+        for (int i = 0; i < batch.numSelected(); i++)
+            mergeTupleIntoGroup(batch.getTuple(batch.getSelected(i)));
+    }
+
+    /**
+     * Merge the groups of other into this aggregator, as if every tuple
+     * merged into other had been merged into this one. Used to combine the
+     * partial aggregates built over different parts of the input.
+     *
+     * @param other an aggregator built with the same arguments as this one
+     * @throws IllegalArgumentException if other is not of the same class
+     */
+    void merge(Aggregator other);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
      */
     OpIterator iterator();
-    
+
+    /**
+     * Release the resources of the aggregator, e.g. the temporary files of
+     * groups that did not fit in memory. Iterators returned by
+     * {@link #iterator} must not be used afterwards.
+     */
+    default void close() {
+    }
+
 }
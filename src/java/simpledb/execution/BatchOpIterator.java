@@ -0,0 +1,29 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BatchOpIterator is implemented by operators that can also produce their
+ * output a batch at a time. Pulling a batch of rows at once, instead of
+ * one Tuple per call to next(), saves a virtual call and usually a Tuple
+ * allocation per row.
+ * <p>
+ * The usual OpIterator rules apply: open() must be called first, and
+ * rewind() starts over. An iterator must be read either with hasNext/next
+ * or with nextBatch between two calls to open() or rewind(), not both.
+ *
+ * @see TupleToBatchAdapter
+ * @see BatchToTupleAdapter
+ */
+public interface BatchOpIterator extends OpIterator {
+
+    /**
+     * Returns the next batch of rows. The batch has at least one selected
+     * row, and stays valid until the next call to nextBatch.
+     *
+     * @return the next batch, or null if there are no more rows
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -0,0 +1,65 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Reads a BatchOpIterator a batch at a time and returns its selected rows
+ * one Tuple at a time, so that batch pipelines can feed operators that only
+ * work on tuples.
+ */
+public class BatchToTupleAdapter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchOpIterator child;
+    private transient TupleBatch batch;
+    private transient int pos;
+
+    public BatchToTupleAdapter(BatchOpIterator child) {
+        this.child = child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (batch == null || pos == batch.numSelected()) {
+            batch = child.nextBatch();
+            pos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(batch.getSelected(pos++));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = TupleToBatchAdapter.of(children[0]);
+    }
+}
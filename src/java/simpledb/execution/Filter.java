@@ -10,11 +10,14 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private Predicate p;
     private OpIterator child;
+    private transient BatchOpIterator batchChild;
+    private int limit = Integer.MAX_VALUE;
+    private transient int returned;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -39,10 +42,29 @@ public class Filter extends Operator {
         return child.getTupleDesc();
     }
 
+    /**
+     * Return at most limit tuples. Once they have been returned, the child
+     * is not read any further.
+     */
+    public void setLimit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.limit = limit;
+    }
+
+    /**
+     * @return the maximum number of tuples returned, Integer.MAX_VALUE if
+     * there is no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         child.open();
+        returned = 0;
         super.open();
     }
 
@@ -55,6 +77,7 @@ public class Filter extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child.rewind();
+        returned = 0;
     }
 
     /**
@@ -69,9 +92,35 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
+        if (returned >= limit) return null;
         while (child.hasNext()) {
             Tuple next = child.next();
-            if (p.filter(next)) return next;
+            if (p.filter(next)) {
+                returned++;
+                return next;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads batches from the child and narrows their selection vector to the
+     * rows that pass the predicate, skipping batches where no row does. The
+     * last batch before the limit is cut short.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (returned >= limit)
+            return null;
+        if (batchChild == null)
+            batchChild = TupleToBatchAdapter.of(child);
+        TupleBatch batch;
+        while ((batch = batchChild.nextBatch()) != null) {
+            batch.filter(p);
+            if (batch.numSelected() > 0) {
+                batch.truncate(limit - returned);
+                returned += batch.numSelected();
+                return batch;
+            }
         }
         return null;
     }
@@ -86,6 +135,7 @@ public class Filter extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         child = children[0];
+        batchChild = null;
     }
 
 }
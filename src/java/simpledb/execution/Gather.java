@@ -0,0 +1,251 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Morsels;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Gather runs several copies of a plan, each in its own thread, and returns
+ * the union of their tuples as a single OpIterator, in no particular order.
+ * <p>
+ * The copies are meant to read disjoint parts of the same table, e.g. a
+ * parallel scan: a {@link SeqScan} per copy, all sharing one
+ * {@link Morsels}, with the same filters above each of them. Each worker
+ * reads its copy a batch at a time and hands the tuples to the consumer
+ * through a bounded queue, so workers block instead of running ahead when
+ * the consumer is slower than they are.
+ * <p>
+ * If a worker fails, the consumer gets its exception from the next call to
+ * hasNext or next.
+ */
+public class Gather extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of chunks of tuples the queue holds for each worker.
+     */
+    private static final int QUEUE_CHUNKS_PER_WORKER = 4;
+
+    // marks the end of the output of a worker
+    private static final List<Tuple> DONE = new ArrayList<>();
+
+    // a worker blocks on its queue until the consumer takes tuples, so the
+    // workers of every Gather in a plan must be able to run at once: the
+    // pool is not bounded
+    private static final ExecutorService workerPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "simpledb-gather");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private OpIterator[] children;
+    private final Morsels morsels;
+    private final TupleDesc td;
+
+    transient private BlockingQueue<List<Tuple>> queue;
+    transient private List<Future<?>> running;
+    transient private volatile boolean cancelled;
+    transient private AtomicReference<Throwable> failure;
+    transient private int workersDone;
+    transient private Iterator<Tuple> chunk;
+
+    /**
+     * @param children the copies of the plan to run in parallel; they must
+     *                 all have the same TupleDesc
+     * @param morsels  the morsels the copies share, reset on rewind; may be
+     *                 null if the copies do not use any
+     */
+    public Gather(OpIterator[] children, Morsels morsels) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("Gather needs at least one child");
+        this.children = children.clone();
+        this.morsels = morsels;
+        this.td = children[0].getTupleDesc();
+    }
+
+    /**
+     * @return the number of copies run in parallel
+     */
+    public int getNumWorkers() {
+        return children.length;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * A computation over the tuples of one child, see {@link #runEach}.
+     */
+    public interface Task<T> {
+        T run(OpIterator child) throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * Instead of gathering the tuples of the children, run task over each
+     * child in its own worker thread, e.g. to aggregate each part of the
+     * input on its own. The children are opened before the task and closed
+     * after it. Must not be called while this Gather is open.
+     *
+     * @return the results of the task, one per child
+     */
+    public <T> List<T> runEach(Task<T> task) throws DbException, TransactionAbortedException {
+        if (morsels != null)
+            morsels.reset();
+        List<Future<T>> futures = new ArrayList<>(children.length);
+        for (OpIterator child : children) {
+            futures.add(workerPool.submit(() -> {
+                child.open();
+                try {
+                    return task.run(child);
+                } finally {
+                    child.close();
+                }
+            }));
+        }
+        List<T> results = new ArrayList<>(children.length);
+        Throwable failed = null;
+        for (Future<T> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (ExecutionException e) {
+                if (failed == null)
+                    failed = e.getCause();
+            } catch (InterruptedException e) {
+                if (failed == null)
+                    failed = e;
+            }
+        }
+        if (failed != null)
+            rethrow(failed);
+        return results;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        start();
+        super.open();
+    }
+
+    private void start() {
+        if (morsels != null)
+            morsels.reset();
+        queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS_PER_WORKER * children.length);
+        failure = new AtomicReference<>();
+        cancelled = false;
+        workersDone = 0;
+        chunk = Collections.emptyIterator();
+        running = new ArrayList<>(children.length);
+        for (OpIterator child : children)
+            running.add(workerPool.submit(() -> runWorker(child)));
+    }
+
+    /**
+     * Read child to the end, and pass its tuples to the consumer.
+     */
+    private void runWorker(OpIterator child) {
+        try {
+            child.open();
+            BatchOpIterator batches = TupleToBatchAdapter.of(child);
+            TupleBatch b;
+            while (!cancelled && (b = batches.nextBatch()) != null) {
+                // the batch is reused by the child, so copy its rows out
+                List<Tuple> tuples = new ArrayList<>(b.numSelected());
+                for (int i = 0; i < b.numSelected(); i++)
+                    tuples.add(b.getTuple(b.getSelected(i)));
+                put(tuples);
+            }
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            child.close();
+            try {
+                put(DONE);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private void put(List<Tuple> tuples) throws InterruptedException {
+        while (!cancelled) {
+            if (queue.offer(tuples, 10, TimeUnit.MILLISECONDS))
+                return;
+        }
+    }
+
+    /**
+     * Stop the workers and wait until they are done with their children.
+     */
+    private void stop() {
+        if (running == null)
+            return;
+        cancelled = true;
+        queue.clear();
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        running = null;
+        queue = null;
+    }
+
+    public void close() {
+        super.close();
+        stop();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        start();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (!chunk.hasNext()) {
+            checkFailure();
+            if (workersDone == children.length)
+                return null;
+            List<Tuple> next;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for parallel workers");
+            }
+            if (next == DONE)
+                workersDone++;
+            chunk = next.iterator();
+        }
+        return chunk.next();
+    }
+
+    private void checkFailure() throws DbException, TransactionAbortedException {
+        if (failure.get() != null)
+            rethrow(failure.get());
+    }
+
+    private static void rethrow(Throwable e) throws DbException, TransactionAbortedException {
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        throw new DbException("parallel worker failed: " + e);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return children.clone();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.children = children.clone();
+    }
+}
@@ -0,0 +1,65 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+
+/**
+ * GroupState is the running state of an aggregate over the values of one
+ * group: their count, sum, minimum and maximum. It is enough to compute any
+ * {@link Aggregator.Op}, and the states of the same group built from
+ * different parts of the input can be merged, which is what partial (e.g.
+ * per-thread) aggregation relies on.
+ */
+class GroupState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    int count;
+    long sum;
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+
+    /**
+     * Add a value of the group.
+     */
+    void add(int v) {
+        count++;
+        sum += v;
+        if (v < min)
+            min = v;
+        if (v > max)
+            max = v;
+    }
+
+    /**
+     * Add every value of the group that was added to other.
+     */
+    void merge(GroupState other) {
+        count += other.count;
+        sum += other.sum;
+        if (other.min < min)
+            min = other.min;
+        if (other.max > max)
+            max = other.max;
+    }
+
+    /**
+     * @return the value of the aggregate what over the group
+     * @throws UnsupportedOperationException for SUM_COUNT and SC_AVG
+     */
+    int result(Aggregator.Op what) {
+        switch (what) {
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            case SUM:
+                return (int) sum;
+            case AVG:
+                return (int) (sum / count);
+            case COUNT:
+                return count;
+            default:
+                throw new UnsupportedOperationException("unsupported operator " + what);
+        }
+    }
+}
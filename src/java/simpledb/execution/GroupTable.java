@@ -0,0 +1,396 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.function.BiFunction;
+
+/**
+ * GroupTable maps the groups of an aggregate, each the list of its values of
+ * the group-by fields, to a {@link GroupState} per aggregate computed,
+ * keeping at most maxGroups groups in memory.
+ * <p>
+ * When a new group would go over the budget, the state of every group in
+ * memory is written to one of {@link #NUM_PARTITIONS} spill files, chosen
+ * by the hash of the group, and the table starts again empty. A group may
+ * therefore have several partial states on disk. When the groups are read,
+ * each partition is aggregated on its own in a new GroupTable, which spills
+ * again, with another hash function, if the partition itself has too many
+ * groups. Memory use is bounded by the budget whatever the number of
+ * groups.
+ * <p>
+ * Groups over a single integer field are indexed by an {@link IntIntMap}
+ * from the value of the field to the position of the group in flat arrays,
+ * rather than by a HashMap of boxed keys.
+ */
+class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default maximum number of groups kept in memory.
+     */
+    static final int DEFAULT_MAX_GROUPS = 100000;
+
+    /**
+     * Number of spill files the groups are split into.
+     */
+    static final int NUM_PARTITIONS = 16;
+
+    // past this depth, partitions are aggregated in memory whatever their
+    // size: their groups all have the same hash code
+    private static final int MAX_DEPTH = 6;
+
+    // a spilled group is its fields followed by count, sum (high and low
+    // halves), min and max of each aggregate
+    private static final int SPILLED_STATE_FIELDS = 5;
+
+    private final Type[] groupTypes;
+    private final int numAggregates;
+    private final int maxGroups;
+    private final int depth;
+    private final Map<List<Field>, GroupState[]> groups = new HashMap<>();
+    // the groups when there is a single int group-by field
+    private final boolean intGroups;
+    private IntIntMap intIndex;
+    private int[] intKeys;
+    private GroupState[][] intStates;
+    private int numIntGroups;
+    private transient SpillFile[] partitions;
+
+    /**
+     * @param groupTypes    the types of the group-by fields
+     * @param numAggregates the number of aggregates computed for each group
+     * @param maxGroups     the maximum number of groups kept in memory
+     */
+    GroupTable(Type[] groupTypes, int numAggregates, int maxGroups) {
+        this(groupTypes, numAggregates, maxGroups, 0);
+    }
+
+    /**
+     * A table of groups over a single field, with a single aggregate.
+     */
+    GroupTable(Type groupType, int maxGroups) {
+        this(new Type[]{groupType}, 1, maxGroups, 0);
+    }
+
+    private GroupTable(Type[] groupTypes, int numAggregates, int maxGroups, int depth) {
+        this.groupTypes = groupTypes.clone();
+        this.numAggregates = numAggregates;
+        this.maxGroups = Math.max(1, maxGroups);
+        this.depth = depth;
+        this.intGroups = groupTypes.length == 1 && groupTypes[0] == Type.INT_TYPE;
+        if (intGroups) {
+            intIndex = new IntIntMap();
+            intKeys = new int[16];
+            intStates = new GroupState[16][];
+        }
+    }
+
+    private GroupState[] newStates() {
+        GroupState[] states = new GroupState[numAggregates];
+        for (int i = 0; i < numAggregates; i++)
+            states[i] = new GroupState();
+        return states;
+    }
+
+    /**
+     * @return the number of groups in memory
+     */
+    private int size() {
+        return intGroups ? numIntGroups : groups.size();
+    }
+
+    /**
+     * @return the states of the aggregates of group, created empty if the
+     * group is new
+     */
+    GroupState[] get(List<Field> group) {
+        if (intGroups)
+            return get(((IntField) group.get(0)).getValue());
+        GroupState[] states = groups.get(group);
+        if (states == null) {
+            if (groups.size() >= maxGroups && depth < MAX_DEPTH)
+                spill();
+            states = newStates();
+            groups.put(group, states);
+        }
+        return states;
+    }
+
+    /**
+     * @return the states of the aggregates of a group over a single int
+     * field, created empty if the group is new
+     */
+    GroupState[] get(int group) {
+        int i = intIndex.get(group);
+        if (i != -1)
+            return intStates[i];
+        if (numIntGroups >= maxGroups && depth < MAX_DEPTH)
+            spill();
+        i = numIntGroups++;
+        if (i == intKeys.length) {
+            intKeys = Arrays.copyOf(intKeys, i * 2);
+            intStates = Arrays.copyOf(intStates, i * 2);
+        }
+        intIndex.putIfAbsent(group, i);
+        intKeys[i] = group;
+        intStates[i] = newStates();
+        return intStates[i];
+    }
+
+    /**
+     * @return the state of the single aggregate of a group over a single
+     * field
+     */
+    GroupState get(Field group) {
+        if (intGroups)
+            return get(((IntField) group).getValue())[0];
+        return get(Collections.singletonList(group))[0];
+    }
+
+    /**
+     * @return the groups in memory
+     */
+    private Iterator<Map.Entry<List<Field>, GroupState[]>> inMemory() {
+        if (!intGroups)
+            return groups.entrySet().iterator();
+        return new Iterator<Map.Entry<List<Field>, GroupState[]>>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < numIntGroups;
+            }
+
+            public Map.Entry<List<Field>, GroupState[]> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                List<Field> group = Collections.singletonList(new IntField(intKeys[next]));
+                return new AbstractMap.SimpleImmutableEntry<>(group, intStates[next++]);
+            }
+        };
+    }
+
+    private void clearMemory() {
+        groups.clear();
+        if (intGroups) {
+            intIndex.clear();
+            Arrays.fill(intStates, 0, numIntGroups, null);
+            numIntGroups = 0;
+        }
+    }
+
+    /**
+     * @return true if some groups were written to disk
+     */
+    boolean hasSpilled() {
+        return partitions != null;
+    }
+
+    /**
+     * Merge every group of other into this table.
+     */
+    void merge(GroupTable other) {
+        try {
+            Iterator<Map.Entry<List<Field>, GroupState[]>> it = other.entries();
+            while (it.hasNext()) {
+                Map.Entry<List<Field>, GroupState[]> e = it.next();
+                mergeStates(get(e.getKey()), e.getValue());
+            }
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void mergeStates(GroupState[] into, GroupState[] from) {
+        for (int i = 0; i < into.length; i++)
+            into[i].merge(from[i]);
+    }
+
+    private TupleDesc spillDesc() {
+        Type[] types = new Type[groupTypes.length + SPILLED_STATE_FIELDS * numAggregates];
+        Arrays.fill(types, Type.INT_TYPE);
+        System.arraycopy(groupTypes, 0, types, 0, groupTypes.length);
+        return new TupleDesc(types);
+    }
+
+    private int partitionOf(List<Field> group) {
+        int h = (group.hashCode() ^ (depth * 0x85EBCA6B)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (NUM_PARTITIONS - 1);
+    }
+
+    /**
+     * Write the state of every group in memory to its partition, and empty
+     * the table.
+     */
+    private void spill() {
+        try {
+            TupleDesc td = spillDesc();
+            if (partitions == null) {
+                partitions = new SpillFile[NUM_PARTITIONS];
+                for (int i = 0; i < NUM_PARTITIONS; i++)
+                    partitions[i] = new SpillFile(td);
+            }
+            Iterator<Map.Entry<List<Field>, GroupState[]>> it = inMemory();
+            while (it.hasNext()) {
+                Map.Entry<List<Field>, GroupState[]> e = it.next();
+                Tuple t = new Tuple(td);
+                int f = 0;
+                for (Field group : e.getKey())
+                    t.setField(f++, group);
+                for (GroupState s : e.getValue()) {
+                    t.setField(f++, new IntField(s.count));
+                    t.setField(f++, new IntField((int) (s.sum >>> 32)));
+                    t.setField(f++, new IntField((int) s.sum));
+                    t.setField(f++, new IntField(s.min));
+                    t.setField(f++, new IntField(s.max));
+                }
+                partitions[partitionOf(e.getKey())].add(t);
+            }
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+        clearMemory();
+    }
+
+    private static int intAt(Tuple t, int i) {
+        return ((IntField) t.getField(i)).getValue();
+    }
+
+    private List<Field> groupOf(Tuple t) {
+        if (groupTypes.length == 1)
+            return Collections.singletonList(t.getField(0));
+        Field[] group = new Field[groupTypes.length];
+        for (int i = 0; i < group.length; i++)
+            group[i] = t.getField(i);
+        return Arrays.asList(group);
+    }
+
+    private GroupState[] statesOf(Tuple t) {
+        GroupState[] states = new GroupState[numAggregates];
+        int f = groupTypes.length;
+        for (int i = 0; i < numAggregates; i++, f += SPILLED_STATE_FIELDS) {
+            GroupState s = new GroupState();
+            s.count = intAt(t, f);
+            s.sum = ((long) intAt(t, f + 1) << 32) | (intAt(t, f + 2) & 0xFFFFFFFFL);
+            s.min = intAt(t, f + 3);
+            s.max = intAt(t, f + 4);
+            states[i] = s;
+        }
+        return states;
+    }
+
+    /**
+     * @return the groups and their final state. If the table spilled, the
+     * groups still in memory are spilled too, and the partitions are
+     * aggregated one at a time as the iterator advances.
+     */
+    Iterator<Map.Entry<List<Field>, GroupState[]>> entries() throws DbException {
+        if (partitions == null)
+            return inMemory();
+        if (size() > 0)
+            spill();
+        return new Iterator<Map.Entry<List<Field>, GroupState[]>>() {
+            private int next = 0;
+            // the partition being read, aggregated in a table of its own
+            private GroupTable sub;
+            private Iterator<Map.Entry<List<Field>, GroupState[]>> current = Collections.emptyIterator();
+
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (sub != null)
+                        sub.clear();
+                    sub = null;
+                    if (next == NUM_PARTITIONS)
+                        return false;
+                    sub = aggregatePartition(next++);
+                    try {
+                        current = sub.entries();
+                    } catch (DbException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return true;
+            }
+
+            public Map.Entry<List<Field>, GroupState[]> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    private GroupTable aggregatePartition(int p) {
+        GroupTable sub = new GroupTable(groupTypes, numAggregates, maxGroups, depth + 1);
+        try (SpillFile.Reader r = partitions[p].reader()) {
+            while (r.hasNext()) {
+                Tuple t = r.next();
+                mergeStates(sub.get(groupOf(t)), statesOf(t));
+            }
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+        return sub;
+    }
+
+    /**
+     * Delete the spill files and empty the table.
+     */
+    void clear() {
+        clearMemory();
+        if (partitions != null) {
+            for (SpillFile f : partitions)
+                f.delete();
+        }
+        partitions = null;
+    }
+
+    /**
+     * @return an OpIterator over a tuple per group, made by toTuple from the
+     * group and its states
+     */
+    OpIterator iterator(TupleDesc td, BiFunction<List<Field>, GroupState[], Tuple> toTuple) {
+        return new OpIterator() {
+            private static final long serialVersionUID = 1L;
+            private Iterator<Map.Entry<List<Field>, GroupState[]>> it;
+
+            public void open() throws DbException {
+                it = entries();
+            }
+
+            public boolean hasNext() {
+                if (it == null)
+                    throw new IllegalStateException("iterator is not open");
+                return it.hasNext();
+            }
+
+            public Tuple next() {
+                if (it == null)
+                    throw new IllegalStateException("iterator is not open");
+                Map.Entry<List<Field>, GroupState[]> e = it.next();
+                return toTuple.apply(e.getKey(), e.getValue());
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                open();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void close() {
+                it = null;
+            }
+        };
+    }
+}
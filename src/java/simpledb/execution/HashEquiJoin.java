@@ -2,6 +2,10 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.index.BTreeScan;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -9,8 +13,15 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * HashEquiJoin joins on equality with a hybrid hash join that spills to
+ * disk when child1 does not fit in memory (see {@link #fetchNext}).
+ * <p>
+ * Once child1 is read, a {@link RuntimeFilter} of its join keys is pushed
+ * down to the scan under child2 (through any Filters), so that tuples of
+ * child2 without a match are dropped as the pages are read rather than
+ * after they went through the operators above the scan.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
@@ -55,47 +66,334 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    final Map<Object, List<Tuple>> map = new HashMap<>();
+    /**
+     * Default maximum number of child1 tuples kept in memory at once.
+     */
     public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
-        }
-        return cnt > 0;
+    /**
+     * Number of partitions the inputs are split into once child1 does not
+     * fit in memory.
+     */
+    public final static int NUM_PARTITIONS = 16;
+
+    private int maxInMemory = MAP_SIZE;
 
+    // the hash table over the child1 tuples in memory
+    transient private JoinHashTable map;
+    transient private boolean built = false;
+    // partitions whose tuples were moved to disk, with their spill files
+    transient private boolean[] spilled;
+    transient private int[] residentCount;
+    transient private int resident;
+    transient private boolean anySpilled;
+    transient private SpillFile[] buildSpill, probeSpill;
+    // true while child2 is being read; afterwards the spilled partitions
+    // are joined one at a time
+    transient private boolean probingChild2;
+    transient private int partition;
+    transient private SpillFile.Reader buildReader, probeReader;
+
+    // the hash codes of the keys of child1, to build the runtime filter,
+    // and the filter
+    transient private int[] keyHashes;
+    transient private int numKeys;
+    transient private RuntimeFilter filter;
+    transient private boolean pushedDown;
+
+    // the current tuple of child2 (or of a probe spill file) and the row of
+    // its next match in map, or -1
+    transient private int match = -1;
+
+    // state of nextBatch while reading child2: the current batch and the
+    // next selected row in it
+    transient private BatchOpIterator batchChild1, batchChild2;
+    transient private TupleBatch probe, out;
+    transient private int probePos;
+
+    /**
+     * Set how many child1 tuples may be kept in memory. Takes effect the
+     * next time the operator is opened or rewound.
+     */
+    public void setMaxInMemoryTuples(int maxInMemory) {
+        this.maxInMemory = Math.max(1, maxInMemory);
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        built = false;
         super.open();
     }
 
     public void close() {
         super.close();
+        cleanup();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        if (pushedDown) {
+            try {
+                pushDown(child2, null);
+            } catch (DbException | TransactionAbortedException e) {
+                // the scan is closed, so it does not read anything
+            }
+            pushedDown = false;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        cleanup();
         child1.rewind();
         child2.rewind();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    private void cleanup() {
+        if (buildReader != null)
+            buildReader.close();
+        if (probeReader != null)
+            probeReader.close();
+        buildReader = probeReader = null;
+        for (SpillFile[] files : new SpillFile[][]{buildSpill, probeSpill}) {
+            if (files == null)
+                continue;
+            for (SpillFile f : files) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        buildSpill = probeSpill = null;
+        map = null;
+        keyHashes = null;
+        filter = null;
+        built = false;
+        t1 = t2 = null;
+        match = -1;
+        probe = null;
+    }
+
+    private JoinHashTable newTable() {
+        return new JoinHashTable(child1.getTupleDesc().getFieldType(pred.getField1()));
+    }
+
+    private static int partitionOf(Field key) {
+        // scramble the hash code so that partitions do not follow the
+        // buckets of the hash map
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (NUM_PARTITIONS - 1);
+    }
+
+    /**
+     * Read all of child1 into the hash table. Whenever more than maxInMemory
+     * tuples are in memory, the largest partition still in memory is
+     * written to disk, and from then on its tuples go straight to its file.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        if (batchChild1 == null) {
+            batchChild1 = TupleToBatchAdapter.of(child1);
+            batchChild2 = TupleToBatchAdapter.of(child2);
+        }
+        map = newTable();
+        spilled = new boolean[NUM_PARTITIONS];
+        residentCount = new int[NUM_PARTITIONS];
+        resident = 0;
+        anySpilled = false;
+        probingChild2 = true;
+        partition = -1;
+        built = true;
+
+        TupleBatch b;
+        while ((b = batchChild1.nextBatch()) != null) {
+            for (int i = 0; i < b.numSelected(); i++) {
+                Tuple t = b.getTuple(b.getSelected(i));
+                Field key = t.getField(pred.getField1());
+                addKeyHash(key);
+                int p = partitionOf(key);
+                if (spilled[p]) {
+                    buildSpill[p].add(t);
+                    continue;
+                }
+                map.add(key, t);
+                residentCount[p]++;
+                if (++resident > maxInMemory)
+                    spillLargestPartition();
+            }
+        }
+        buildFilter();
+    }
+
+    private void addKeyHash(Field key) {
+        if (keyHashes == null)
+            keyHashes = new int[64];
+        else if (numKeys == keyHashes.length)
+            keyHashes = Arrays.copyOf(keyHashes, numKeys * 2);
+        keyHashes[numKeys++] = key instanceof IntField ? ((IntField) key).getValue() : key.hashCode();
+    }
+
+    /**
+     * Build the runtime filter over the keys of child1, and push it down to
+     * the scan of child2 if there is one.
+     */
+    private void buildFilter() throws DbException, TransactionAbortedException {
+        boolean intKeys = child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE;
+        filter = new RuntimeFilter(pred.getField2(), intKeys, numKeys);
+        for (int i = 0; i < numKeys; i++)
+            filter.add(keyHashes[i]);
+        keyHashes = null;
+        numKeys = 0;
+        pushedDown = pushDown(child2, filter) || pushedDown;
+    }
+
+    /**
+     * Set f as the runtime filter of the scan under plan, if plan is a
+     * SeqScan or a BTreeScan under any number of Filters, which keep the
+     * fields of the scan where they are.
+     *
+     * @return true if f was set
+     */
+    static boolean pushDown(OpIterator plan, RuntimeFilter f) throws DbException, TransactionAbortedException {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        if (plan instanceof SeqScan)
+            return ((SeqScan) plan).setRuntimeFilter(f);
+        if (plan instanceof BTreeScan) {
+            ((BTreeScan) plan).setRuntimeFilter(f);
+            return true;
+        }
+        return false;
+    }
+
+    private void spillLargestPartition() throws DbException {
+        if (buildSpill == null) {
+            buildSpill = new SpillFile[NUM_PARTITIONS];
+            probeSpill = new SpillFile[NUM_PARTITIONS];
+        }
+        int victim = 0;
+        for (int p = 1; p < NUM_PARTITIONS; p++) {
+            if (residentCount[p] > residentCount[victim])
+                victim = p;
+        }
+        // the table has no removal: the tuples that stay are added to a new
+        // one
+        SpillFile file = new SpillFile(child1.getTupleDesc());
+        JoinHashTable kept = newTable();
+        for (int row = 0; row < map.size(); row++) {
+            Tuple t = map.get(row);
+            Field key = t.getField(pred.getField1());
+            if (partitionOf(key) == victim)
+                file.add(t);
+            else
+                kept.add(key, t);
+        }
+        map = kept;
+        buildSpill[victim] = file;
+        probeSpill[victim] = new SpillFile(child2.getTupleDesc());
+        spilled[victim] = true;
+        anySpilled = true;
+        resident -= residentCount[victim];
+        residentCount[victim] = 0;
+    }
+
+    /**
+     * @return true if the child2 tuple with the given key was written to the
+     * spill file of its partition, or dropped since it has no match, and so
+     * must not be probed now
+     */
+    private boolean spillProbe(Field key, TupleBatch b, int row, Tuple t) throws DbException {
+        if (!anySpilled)
+            return false;
+        int p = partitionOf(key);
+        if (!spilled[p])
+            return false;
+        // no need to write out a tuple that cannot match
+        if (!filter.mightContain(key))
+            return true;
+        probeSpill[p].add(t != null ? t : b.getTuple(row));
+        return true;
+    }
+
+    /**
+     * Load the next chunk of the build file of the current partition.
+     *
+     * @return false if the file has no more tuples
+     */
+    private boolean loadChunk() throws DbException {
+        map.clear();
+        int n = 0;
+        while (n < maxInMemory && buildReader.hasNext()) {
+            Tuple t = buildReader.next();
+            map.add(t.getField(pred.getField1()), t);
+            n++;
+        }
+        return n > 0;
+    }
+
+    /**
+     * Move on to the next spilled partition that has tuples on both sides.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException {
+        probingChild2 = false;
+        map.clear();
+        while (++partition < NUM_PARTITIONS) {
+            if (!spilled[partition] || probeSpill[partition].size() == 0)
+                continue;
+            buildReader = buildSpill[partition].reader();
+            if (!loadChunk()) {
+                buildReader.close();
+                buildReader = null;
+                continue;
+            }
+            probeReader = probeSpill[partition].reader();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the next tuple to probe the hash table with, once child2 has
+     * been read: the tuples of the probe file of the current partition,
+     * read once per chunk of its build file.
+     *
+     * @return the next tuple, or null if the join is done
+     */
+    private Tuple nextSpilledProbe() throws DbException {
+        while (partition < NUM_PARTITIONS) {
+            if (probeReader != null && probeReader.hasNext())
+                return probeReader.next();
+            if (probeReader != null)
+                probeReader.close();
+            probeReader = null;
+            if (buildReader != null && loadChunk()) {
+                probeReader = probeSpill[partition].reader();
+                continue;
+            }
+            if (buildReader != null)
+                buildReader.close();
+            buildReader = null;
+            if (partition >= 0) {
+                buildSpill[partition].delete();
+                probeSpill[partition].delete();
+            }
+            if (!nextPartition())
+                return null;
+        }
+        return null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -111,53 +409,90 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     * <p>
+     * This is a hybrid hash join: child1 is loaded into a hash table, and if
+     * it does not fit in memory, part of its partitions are written to disk.
+     * child2 is then read once; its tuples either probe the hash table or go
+     * to the file of their partition. Each spilled partition is then joined
+     * on its own. Both children are read only once.
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        if (!built)
+            build();
+        while (true) {
+            if (match != -1) {
+                Tuple left = map.get(match);
+                match = map.next(match);
+                return merge(left, t2);
+            }
+            if (probingChild2) {
+                if (child2.hasNext()) {
+                    t2 = child2.next();
+                    Field key = t2.getField(pred.getField2());
+                    if (!spillProbe(key, null, 0, t2))
+                        match = map.first(key);
+                    continue;
+                }
+                if (!anySpilled || !nextPartition())
+                    return null;
+            }
+            t2 = nextSpilledProbe();
+            if (t2 == null)
+                return null;
+            match = map.first(t2.getField(pred.getField2()));
         }
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+    /**
+     * Batch version of fetchNext: probes the hash table with whole batches
+     * of child2 and fills a batch with the joined rows. Tuples of child1 are
+     * kept in the hash table as Tuples, but while child2 is read no Tuple is
+     * created for its rows or for the output.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!built)
+            build();
+        if (out == null)
+            out = new TupleBatch(comboTD);
+        out.clear();
+        while (!out.isFull()) {
+            if (match != -1) {
+                Tuple left = map.get(match);
+                match = map.next(match);
+                if (probingChild2)
+                    out.addJoined(left, probe, probe.getSelected(probePos - 1));
+                else
+                    out.addJoined(left, t2);
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            }
+            if (probingChild2) {
+                if (probe != null && probePos < probe.numSelected()) {
+                    int row = probe.getSelected(probePos++);
+                    if (!anySpilled && probe.isIntColumn(pred.getField2())) {
+                        match = map.first(probe.getIntColumn(pred.getField2())[row]);
+                        continue;
+                    }
+                    Field key = probe.getField(pred.getField2(), row);
+                    if (!spillProbe(key, probe, row, null))
+                        match = map.first(key);
+                    continue;
+                }
+                probe = batchChild2.nextBatch();
+                probePos = 0;
+                if (probe != null)
+                    continue;
+                if (!anySpilled || !nextPartition())
+                    break;
+            }
+            t2 = nextSpilledProbe();
+            if (t2 == null)
+                break;
+            match = map.first(t2.getField(pred.getField2()));
         }
-
-        return null;
+        return out.numSelected() > 0 ? out : null;
     }
 
     @Override
@@ -169,6 +504,8 @@ public class HashEquiJoin extends Operator {
     public void setChildren(OpIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        this.batchChild1 = null;
+        this.batchChild2 = null;
     }
     
 }
@@ -0,0 +1,153 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * HashSemiJoin returns the tuples of child1 that have a match in child2 on
+ * equality of the join fields, as for x IN (subquery) or a correlated
+ * EXISTS; or, as an anti-join, the tuples of child1 that have none, as for
+ * NOT IN and NOT EXISTS.
+ * <p>
+ * Unlike a join, each tuple of child1 is returned at most once, with only
+ * the fields of child1, however many tuples of child2 it matches. child2
+ * is read first into a hash set of its distinct join keys, so probing a
+ * tuple of child1 is a single lookup that stops at the first match.
+ * Integer keys are kept in an {@link IntIntMap}, without boxing.
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private final boolean anti;
+    private OpIterator child1, child2;
+
+    // the distinct keys of child2
+    transient private IntIntMap intKeys;
+    transient private Set<Field> keys;
+    transient private boolean built;
+
+    /**
+     * @param p      the predicate to join on, which must be an equality
+     * @param child1 the input whose tuples are returned
+     * @param child2 the input whose keys are looked up
+     * @param anti   true to return the tuples of child1 without a match,
+     *               rather than those with one
+     * @throws IllegalArgumentException if p is not an equality
+     */
+    public HashSemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, boolean anti) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("hash semi-join does not support " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return true if this returns the tuples of child1 without a match
+     */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the TupleDesc of child1, as only its fields are returned
+     */
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        built = false;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        intKeys = null;
+        keys = null;
+        built = false;
+    }
+
+    /**
+     * Starts child1 over; the keys of child2 are kept.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+    }
+
+    private void build() throws DbException, TransactionAbortedException {
+        if (child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE)
+            intKeys = new IntIntMap();
+        else
+            keys = new HashSet<>();
+        while (child2.hasNext()) {
+            Field key = child2.next().getField(pred.getField2());
+            if (intKeys != null)
+                intKeys.putIfAbsent(((IntField) key).getValue(), 0);
+            else
+                keys.add(key);
+        }
+        built = true;
+    }
+
+    private boolean hasMatch(Field key) {
+        if (intKeys != null)
+            return key instanceof IntField && intKeys.get(((IntField) key).getValue()) != -1;
+        return keys.contains(key);
+    }
+
+    /**
+     * @return the next tuple of child1 with a match in child2, or without
+     * one for an anti-join
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!built)
+            build();
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            if (hasMatch(t.getField(pred.getField1())) != anti)
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -0,0 +1,209 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin joins an outer input with a table stored in a B+ tree
+ * keyed on the join field, on equality: instead of scanning the table, each
+ * outer tuple looks up its key with {@link BTreeFile#indexIterator}. This
+ * reads a few pages per outer tuple, so it is cheaper than a scan of the
+ * table when the outer input is small.
+ * <p>
+ * The outer tuples are read in batches of {@link #BATCH_SIZE}, which are
+ * sorted on the join field before they are looked up: consecutive lookups
+ * then go down the same path of the tree and land on the same or the next
+ * leaf, which are still in the buffer pool, and a key that occurs several
+ * times in a batch is only looked up once.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of outer tuples sorted and looked up together. */
+    public static final int BATCH_SIZE = 1024;
+
+    private final JoinPredicate pred;
+    private final TransactionId tid;
+    private final BTreeFile index;
+    private OpIterator outer;
+    // a scan of the inner table, never opened: it names the fields of the
+    // inner tuples, and shows the table in the plan
+    private OpIterator inner;
+    private final TupleDesc comboTD;
+
+    transient private List<Tuple> batch;
+    transient private int batchPos;
+    transient private Tuple current;
+    transient private Field matchesKey;
+    transient private List<Tuple> matches;
+    transient private int matchPos;
+
+    /**
+     * @param p          the predicate to join on; its second field is a
+     *                   field of the table
+     * @param outer      the input whose tuples are looked up in the table
+     * @param tid        the transaction the lookups run in
+     * @param tableid    the table to look up, stored in a B+ tree keyed on
+     *                   the second field of p
+     * @param tableAlias the alias of the table, which prefixes its field
+     *                   names as in {@link SeqScan}
+     * @throws IllegalArgumentException if p is not an equality or the table
+     *                                  is not a B+ tree keyed on its field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator outer, TransactionId tid,
+                               int tableid, String tableAlias) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("index nested loop join does not support " + p.getOperator());
+        if (!isIndexedOn(tableid, p.getField2()))
+            throw new IllegalArgumentException("table " + tableid + " is not a B+ tree keyed on field " + p.getField2());
+        this.pred = p;
+        this.tid = tid;
+        this.index = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+        this.outer = outer;
+        this.inner = new SeqScan(tid, tableid, tableAlias);
+        comboTD = TupleDesc.merge(outer.getTupleDesc(), inner.getTupleDesc());
+    }
+
+    /**
+     * @return true if the table is stored in a B+ tree keyed on field, so
+     * that it can be the inner table of an index nested loop join on it
+     */
+    public static boolean isIndexedOn(int tableid, int field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return outer.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return inner.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        outer.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        outer.close();
+        batch = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        outer.rewind();
+        reset();
+    }
+
+    private void reset() {
+        batch = new ArrayList<>();
+        batchPos = 0;
+        current = null;
+        matchesKey = null;
+        matches = new ArrayList<>();
+        matchPos = 0;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Read the next batch of outer tuples, sorted on the join field.
+     *
+     * @return false if the outer input is exhausted
+     */
+    private boolean readBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        batchPos = 0;
+        while (batch.size() < BATCH_SIZE && outer.hasNext())
+            batch.add(outer.next());
+        int f = pred.getField1();
+        batch.sort((a, b) -> {
+            Field x = a.getField(f), y = b.getField(f);
+            return x.compare(Predicate.Op.LESS_THAN, y) ? -1 : x.equals(y) ? 0 : 1;
+        });
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Make matches the tuples of the table with key.
+     */
+    private void lookUp(Field key) throws DbException, TransactionAbortedException {
+        matchPos = 0;
+        if (key.equals(matchesKey))
+            return;
+        matches.clear();
+        matchesKey = key;
+        DbFileIterator it = index.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        while (it.hasNext())
+            matches.add(it.next());
+        it.close();
+    }
+
+    /**
+     * Returns the next outer tuple followed by a tuple of the table with
+     * the same key. Within each batch, the outer tuples are returned in
+     * ascending order of their join field.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (current != null && matchPos < matches.size())
+                return merge(current, matches.get(matchPos++));
+            if (batchPos == batch.size() && !readBatch())
+                return null;
+            current = batch.get(batchPos++);
+            lookUp(current.getField(pred.getField1()));
+        }
+    }
+
+    /**
+     * @return the outer input, and a scan of the table that is not read
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{outer, inner};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        outer = children[0];
+        inner = children[1];
+    }
+}
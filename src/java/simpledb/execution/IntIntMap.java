@@ -0,0 +1,98 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A hash map from int keys to non-negative int values, without boxing: keys
+ * and values are kept in two flat arrays, with open addressing and linear
+ * probing. Used by the operators that hash on integer fields (joins and
+ * aggregates) to map a key to the index of its entry in arrays of their
+ * own.
+ */
+class IntIntMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    // -1 marks an empty slot
+    private int[] values;
+    private int mask;
+    private int size;
+
+    IntIntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected the number of keys expected, to size the arrays
+     */
+    IntIntMap(int expected) {
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expected) * 2 - 1) * 2));
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return the value of key, or -1 if there is none
+     */
+    int get(int key) {
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            if (values[i] == -1)
+                return -1;
+            if (keys[i] == key)
+                return values[i];
+        }
+    }
+
+    /**
+     * Map key to value, unless it already has a value.
+     *
+     * @param value a non-negative value
+     * @return the value key had, or -1 if value was added
+     */
+    int putIfAbsent(int key, int value) {
+        int i = slot(key);
+        for (; values[i] != -1; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return values[i];
+        }
+        keys[i] = key;
+        values[i] = value;
+        // keep the table at most half full, so probe sequences stay short
+        if (++size * 2 > keys.length)
+            grow();
+        return -1;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys, oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != -1)
+                putIfAbsent(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(values, -1);
+        size = 0;
+    }
+}
@@ -1,18 +1,18 @@
 package simpledb.execution;
 
-import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.*;
-import simpledb.transaction.TransactionAbortedException;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Only the running state of each group is kept (see {@link GroupState}), not
+ * the tuples, and aggregators built over different parts of the input can be
+ * combined with {@link #merge}. The groups live in a {@link GroupTable},
+ * which writes them to disk when there are too many to keep in memory.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -22,8 +22,8 @@ public class IntegerAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private Map<Field, List<Tuple>> group;
-    private List<Tuple> noGroup;
+    private GroupTable group;
+    private GroupState noGroup;
 
     /**
      * Aggregate constructor
@@ -43,9 +43,33 @@ public class IntegerAggregator implements Aggregator {
         this.afield = afield;
         this.what = what;
         if (gbfield == NO_GROUPING)
-            noGroup = new ArrayList<>();
+            noGroup = new GroupState();
         else
-            group = new ConcurrentHashMap<>();
+            group = new GroupTable(gbfieldtype, GroupTable.DEFAULT_MAX_GROUPS);
+    }
+
+    /**
+     * Set the maximum number of groups kept in memory; past it, groups are
+     * written to temporary files (see {@link GroupTable}). Must be called
+     * before any tuple is merged.
+     */
+    public void setMaxGroups(int maxGroups) {
+        if (group != null)
+            group = new GroupTable(gbfieldtype, maxGroups);
+    }
+
+    /**
+     * @return true if some groups did not fit in memory and were written to
+     * disk
+     */
+    public boolean hasSpilled() {
+        return group != null && group.hasSpilled();
+    }
+
+    private GroupState stateOf(Field groupVal) {
+        if (gbfield == NO_GROUPING)
+            return noGroup;
+        return group.get(groupVal);
     }
 
     /**
@@ -56,23 +80,60 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
+        Field groupVal = gbfield == NO_GROUPING ? null : tup.getField(gbfield);
+        stateOf(groupVal).add(((IntField) tup.getField(afield)).getValue());
+    }
+
+    /**
+     * Reads the aggregate and group-by columns of the batch directly,
+     * without creating a Tuple per row.
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int[] values = batch.getIntColumn(afield);
+        int n = batch.numSelected();
         if (gbfield == NO_GROUPING) {
-            noGroup.add(tup);
+            for (int i = 0; i < n; i++)
+                noGroup.add(values[batch.getSelected(i)]);
+        } else if (batch.isIntColumn(gbfield)) {
+            int[] groups = batch.getIntColumn(gbfield);
+            for (int i = 0; i < n; i++) {
+                int row = batch.getSelected(i);
+                group.get(groups[row])[0].add(values[row]);
+            }
         } else {
-            Field field = tup.getField(gbfield);
-            List<Tuple> od = group.getOrDefault(field, new ArrayList<>());
-            od.add(tup);
-            group.put(field, od);
+            Field[] groups = batch.getColumn(gbfield);
+            for (int i = 0; i < n; i++) {
+                int row = batch.getSelected(i);
+                group.get(groups[row]).add(values[row]);
+            }
         }
     }
 
+    public void merge(Aggregator other) {
+        if (!(other instanceof IntegerAggregator))
+            throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName());
+        IntegerAggregator o = (IntegerAggregator) other;
+        if (gbfield == NO_GROUPING) {
+            noGroup.merge(o.noGroup);
+            return;
+        }
+        group.merge(o.group);
+    }
+
+    public void close() {
+        if (group != null)
+            group.clear();
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      * if using group, or a single (aggregateVal) if no grouping. The
      * aggregateVal is determined by the type of aggregate specified in
-     * the constructor.
+     * the constructor. Without grouping and without any tuple, there is a
+     * result only for COUNT and SUM, which are 0.
      */
     public OpIterator iterator() {
         // some code goes here
@@ -83,63 +144,24 @@ public class IntegerAggregator implements Aggregator {
             String[] names = new String[]{"aggregateVal"};
             Type[] types = new Type[]{Type.INT_TYPE};
             td = new TupleDesc(types, names);
-            Tuple tuple = new Tuple(td);
-            tuple.setField(0, operateOneGroup(noGroup, what, afield));
-            tups.add(tuple);
+            if (noGroup.count > 0 || what == Op.COUNT || what == Op.SUM) {
+                Tuple tuple = new Tuple(td);
+                tuple.setField(0, new IntField(noGroup.result(what)));
+                tups.add(tuple);
+            }
         } else {
             String[] names = new String[]{"groupVal", "aggregateVal"};
             Type[] types = new Type[]{gbfieldtype, Type.INT_TYPE};
             td = new TupleDesc(types, names);
-            for (Map.Entry<Field, List<Tuple>> entry : group.entrySet()) {
-                Tuple tuple = new Tuple(td);
-                tuple.setField(0, entry.getKey());
-                tuple.setField(1, operateOneGroup(entry.getValue(), what, afield));
-                tups.add(tuple);
-            }
-
+            final TupleDesc groupTd = td;
+            return group.iterator(td, (groupVal, states) -> {
+                Tuple tuple = new Tuple(groupTd);
+                tuple.setField(0, groupVal.get(0));
+                tuple.setField(1, new IntField(states[0].result(what)));
+                return tuple;
+            });
         }
         return new TupleIterator(td, tups);
     }
 
-    private Field operateOneGroup(List<Tuple> tups, Op what, int afield) {
-        Integer result = null;
-        switch (what) {
-            case MIN:
-                result = tups.stream().map(x -> {
-                    IntField field = (IntField) x.getField(afield);
-                    return field.getValue();
-                }).min(Integer::compareTo).get();
-                break;
-            case MAX:
-                result = tups.stream().map(x -> {
-                    IntField field = (IntField) x.getField(afield);
-                    return field.getValue();
-                }).max(Integer::compareTo).get();
-                break;
-            case SUM:
-                result = tups.stream().map(x -> {
-                    IntField field = (IntField) x.getField(afield);
-                    return field.getValue();
-                }).reduce(Integer::sum).get();
-                break;
-            case AVG:
-                result = tups.stream().map(x -> {
-                    IntField field = (IntField) x.getField(afield);
-                    return field.getValue();
-                }).reduce(Integer::sum).get();
-                result /= tups.size();
-                break;
-            case COUNT:
-                result = tups.size();
-                break;
-            case SC_AVG:
-                throw new UnsupportedOperationException("sc_avg");
-            case SUM_COUNT:
-                throw new UnsupportedOperationException("sum_count");
-            default:
-                throw new UnsupportedOperationException("unsupport operator");
-        }
-        return new IntField(result);
-    }
-
 }
@@ -0,0 +1,130 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The hash table of a hash join, from a join key to the build tuples with
+ * that key.
+ * <p>
+ * The tuples are kept in a flat arena in the order they were added, each
+ * with the index of the next tuple with the same key, so a key only needs
+ * the index of its first and last tuple. Integer keys are mapped to these
+ * indexes with an {@link IntIntMap}, without boxing or calls to
+ * Field.hashCode and equals; other keys use a HashMap.
+ * <p>
+ * Rows are numbered from 0 in the order they were added; {@link #first}
+ * and {@link #next} return -1 past the last match.
+ */
+class JoinHashTable {
+
+    private static final int INITIAL_ROWS = 64;
+
+    private final boolean intKeys;
+    private final IntIntMap intIndex;
+    private final Map<Field, Integer> index;
+    // first and last row of each distinct key
+    private int[] heads = new int[INITIAL_ROWS];
+    private int[] tails = new int[INITIAL_ROWS];
+    private int numKeys;
+    private Tuple[] rows = new Tuple[INITIAL_ROWS];
+    private int[] next = new int[INITIAL_ROWS];
+    private int numRows;
+
+    /**
+     * @param keyType the type of the join keys
+     */
+    JoinHashTable(Type keyType) {
+        intKeys = keyType == Type.INT_TYPE;
+        intIndex = intKeys ? new IntIntMap() : null;
+        index = intKeys ? null : new HashMap<>();
+    }
+
+    /**
+     * Add t to the tuples of key.
+     */
+    void add(Field key, Tuple t) {
+        int k;
+        if (intKeys) {
+            k = intIndex.putIfAbsent(((IntField) key).getValue(), numKeys);
+        } else {
+            Integer old = index.putIfAbsent(key, numKeys);
+            k = old == null ? -1 : old;
+        }
+        if (numRows == rows.length) {
+            rows = Arrays.copyOf(rows, numRows * 2);
+            next = Arrays.copyOf(next, numRows * 2);
+        }
+        int row = numRows++;
+        rows[row] = t;
+        next[row] = -1;
+        if (k == -1) {
+            if (numKeys == heads.length) {
+                heads = Arrays.copyOf(heads, numKeys * 2);
+                tails = Arrays.copyOf(tails, numKeys * 2);
+            }
+            heads[numKeys] = tails[numKeys] = row;
+            numKeys++;
+        } else {
+            next[tails[k]] = row;
+            tails[k] = row;
+        }
+    }
+
+    /**
+     * @return the first row with key, or -1 if there is none
+     */
+    int first(Field key) {
+        int k;
+        if (intKeys) {
+            k = intIndex.get(((IntField) key).getValue());
+        } else {
+            Integer i = index.get(key);
+            k = i == null ? -1 : i;
+        }
+        return k == -1 ? -1 : heads[k];
+    }
+
+    /**
+     * @return the first row with the int key, or -1 if there is none; the
+     * keys must be ints
+     */
+    int first(int key) {
+        int k = intIndex.get(key);
+        return k == -1 ? -1 : heads[k];
+    }
+
+    /**
+     * @return the row after row with the same key, or -1 if there is none
+     */
+    int next(int row) {
+        return next[row];
+    }
+
+    Tuple get(int row) {
+        return rows[row];
+    }
+
+    /**
+     * @return the number of rows
+     */
+    int size() {
+        return numRows;
+    }
+
+    void clear() {
+        if (intKeys)
+            intIndex.clear();
+        else
+            index.clear();
+        Arrays.fill(rows, 0, numRows, null);
+        numRows = 0;
+        numKeys = 0;
+    }
+}
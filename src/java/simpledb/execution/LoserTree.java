@@ -0,0 +1,109 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+
+import java.io.Closeable;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * LoserTree merges k sorted runs of tuples into one sorted stream.
+ * <p>
+ * The tree has a leaf per run and keeps, in each inner node, the run that
+ * lost the comparison played there; the overall winner is kept in node 0.
+ * After the winner is taken, only the path from its leaf to the root is
+ * played again, so each tuple costs about log2(k) comparisons, against
+ * two per level for a binary heap.
+ * <p>
+ * Ties are broken by run number, so the merge is stable if the runs are
+ * given in input order.
+ */
+class LoserTree implements Closeable {
+
+    private final SpillFile.Reader[] runs;
+    private final Tuple[] heads;
+    private final int[] tree;
+    private final Comparator<Tuple> cmp;
+
+    /**
+     * @param runs the runs to merge, each sorted according to cmp
+     * @param cmp  the order of the tuples
+     */
+    public LoserTree(List<SpillFile.Reader> runs, Comparator<Tuple> cmp) throws DbException {
+        int k = runs.size();
+        this.runs = runs.toArray(new SpillFile.Reader[0]);
+        this.heads = new Tuple[k];
+        this.tree = new int[Math.max(k, 1)];
+        this.cmp = cmp;
+        for (int i = 0; i < k; i++)
+            advance(i);
+        if (k > 0)
+            tree[0] = play(1);
+    }
+
+    private void advance(int run) throws DbException {
+        heads[run] = runs[run].hasNext() ? runs[run].next() : null;
+    }
+
+    /**
+     * @return true if the head of run a comes before the head of run b;
+     * exhausted runs come last
+     */
+    private boolean before(int a, int b) {
+        if (heads[a] == null)
+            return false;
+        if (heads[b] == null)
+            return true;
+        int c = cmp.compare(heads[a], heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    /**
+     * Play the subtree under node, filling in its losers.
+     * Node i has children 2i and 2i+1, and run r is the leaf k+r.
+     *
+     * @return the winner of the subtree
+     */
+    private int play(int node) {
+        int k = runs.length;
+        if (node >= k)
+            return node - k;
+        int a = play(2 * node);
+        int b = play(2 * node + 1);
+        if (before(b, a)) {
+            tree[node] = a;
+            return b;
+        }
+        tree[node] = b;
+        return a;
+    }
+
+    /**
+     * @return the next tuple in the merged order, or null if every run is
+     * exhausted
+     */
+    public Tuple next() throws DbException {
+        if (runs.length == 0)
+            return null;
+        int winner = tree[0];
+        Tuple t = heads[winner];
+        if (t == null)
+            return null;
+        advance(winner);
+        for (int node = (winner + runs.length) / 2; node > 0; node /= 2) {
+            if (before(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+        return t;
+    }
+
+    public void close() {
+        for (SpillFile.Reader r : runs)
+            r.close();
+    }
+}
@@ -0,0 +1,189 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Computes several aggregates at once, grouped by any number of fields: a
+ * single pass over the input computes e.g. COUNT, SUM and MAX of each group.
+ * <p>
+ * Each group keeps an array with a {@link GroupState} per aggregate, in a
+ * {@link GroupTable} that writes the groups to disk when there are too many
+ * to keep in memory. Aggregates over string fields only support COUNT.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gbfields;
+    private final Type[] gbfieldtypes;
+    private final int[] afields;
+    private final Op[] whats;
+    private GroupTable group;
+    private GroupState[] noGroup;
+
+    /**
+     * @param gbfields     the 0-based indexes of the group-by fields in the
+     *                     tuple; empty if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     * @param afields      the 0-based index of the field of each aggregate
+     * @param whats        the operator of each aggregate
+     */
+    public MultiAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields, Op[] whats) {
+        if (afields.length == 0 || afields.length != whats.length)
+            throw new IllegalArgumentException("need an operator for each aggregate field");
+        this.gbfields = gbfields.clone();
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.afields = afields.clone();
+        this.whats = whats.clone();
+        if (gbfields.length == 0)
+            noGroup = newStates();
+        else
+            group = new GroupTable(gbfieldtypes, afields.length, GroupTable.DEFAULT_MAX_GROUPS);
+    }
+
+    private GroupState[] newStates() {
+        GroupState[] states = new GroupState[afields.length];
+        for (int i = 0; i < states.length; i++)
+            states[i] = new GroupState();
+        return states;
+    }
+
+    /**
+     * Set the maximum number of groups kept in memory; past it, groups are
+     * written to temporary files (see {@link GroupTable}). Must be called
+     * before any tuple is merged.
+     */
+    public void setMaxGroups(int maxGroups) {
+        if (group != null)
+            group = new GroupTable(gbfieldtypes, afields.length, maxGroups);
+    }
+
+    /**
+     * @return true if some groups did not fit in memory and were written to
+     * disk
+     */
+    public boolean hasSpilled() {
+        return group != null && group.hasSpilled();
+    }
+
+    private static void add(GroupState state, Field value) {
+        if (value instanceof IntField)
+            state.add(((IntField) value).getValue());
+        else
+            state.count++;
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        GroupState[] states;
+        if (group == null) {
+            states = noGroup;
+        } else if (gbfields.length == 1) {
+            states = group.get(Collections.singletonList(tup.getField(gbfields[0])));
+        } else {
+            Field[] key = new Field[gbfields.length];
+            for (int i = 0; i < key.length; i++)
+                key[i] = tup.getField(gbfields[i]);
+            states = group.get(Arrays.asList(key));
+        }
+        for (int i = 0; i < afields.length; i++)
+            add(states[i], tup.getField(afields[i]));
+    }
+
+    /**
+     * Reads the aggregate and group-by columns of the batch directly,
+     * without creating a Tuple per row.
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        boolean intGroup = gbfields.length == 1 && batch.isIntColumn(gbfields[0]);
+        int[] intGroups = intGroup ? batch.getIntColumn(gbfields[0]) : null;
+        for (int r = 0; r < batch.numSelected(); r++) {
+            int row = batch.getSelected(r);
+            GroupState[] states;
+            if (group == null) {
+                states = noGroup;
+            } else if (intGroup) {
+                states = group.get(intGroups[row]);
+            } else if (gbfields.length == 1) {
+                states = group.get(Collections.singletonList(batch.getField(gbfields[0], row)));
+            } else {
+                Field[] key = new Field[gbfields.length];
+                for (int i = 0; i < key.length; i++)
+                    key[i] = batch.getField(gbfields[i], row);
+                states = group.get(Arrays.asList(key));
+            }
+            for (int i = 0; i < afields.length; i++) {
+                if (batch.isIntColumn(afields[i]))
+                    states[i].add(batch.getIntColumn(afields[i])[row]);
+                else
+                    states[i].count++;
+            }
+        }
+    }
+
+    public void merge(Aggregator other) {
+        if (!(other instanceof MultiAggregator))
+            throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName());
+        MultiAggregator o = (MultiAggregator) other;
+        if (group == null) {
+            for (int i = 0; i < noGroup.length; i++)
+                noGroup[i].merge(o.noGroup[i]);
+            return;
+        }
+        group.merge(o.group);
+    }
+
+    public void close() {
+        if (group != null)
+            group.clear();
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples are the group-by fields followed by
+     * the value of each aggregate, in the order given to the constructor.
+     * Without grouping and without any tuple, there is a result only if
+     * every aggregate is a COUNT or a SUM, which are 0.
+     */
+    public OpIterator iterator() {
+        Type[] types = new Type[gbfields.length + afields.length];
+        Arrays.fill(types, Type.INT_TYPE);
+        System.arraycopy(gbfieldtypes, 0, types, 0, gbfields.length);
+        TupleDesc td = new TupleDesc(types);
+        if (group != null) {
+            return group.iterator(td, (groupVal, states) -> {
+                Tuple tuple = new Tuple(td);
+                for (int i = 0; i < groupVal.size(); i++)
+                    tuple.setField(i, groupVal.get(i));
+                setResults(tuple, groupVal.size(), states);
+                return tuple;
+            });
+        }
+        List<Tuple> tups = new ArrayList<>();
+        if (noGroup[0].count > 0 || allCountOrSum()) {
+            Tuple tuple = new Tuple(td);
+            setResults(tuple, 0, noGroup);
+            tups.add(tuple);
+        }
+        return new TupleIterator(td, tups);
+    }
+
+    private boolean allCountOrSum() {
+        for (Op what : whats)
+            if (what != Op.COUNT && what != Op.SUM)
+                return false;
+        return true;
+    }
+
+    private void setResults(Tuple tuple, int first, GroupState[] states) {
+        for (int i = 0; i < whats.length; i++)
+            tuple.setField(first + i, new IntField(states[i].result(whats[i])));
+    }
+}
@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -10,17 +11,43 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It sorts on one or more fields, each ascending or descending. At most
+ * {@link #setMaxInMemoryTuples maxInMemory} tuples of the child are held in
+ * memory: if the child has more, they are sorted in runs of that size,
+ * each written to a {@link SpillFile}, and the runs are merged with a
+ * {@link LoserTree} as the output is read. If there are more than
+ * {@link #MAX_MERGE_WIDTH} runs, groups of runs are merged into longer
+ * runs first.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Default maximum number of tuples sorted in memory.
+     */
+    public static final int DEFAULT_MAX_IN_MEMORY = 100000;
+
+    /**
+     * Maximum number of runs merged at once.
+     */
+    public static final int MAX_MERGE_WIDTH = 64;
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final TupleComparator comparator;
+    private int maxInMemory = DEFAULT_MAX_IN_MEMORY;
+
+    // the sorted tuples, if they all fit in memory
+    transient private List<Tuple> childTups;
+    transient private Iterator<Tuple> it;
+    // else the sorted runs on disk, and the merge over them
+    transient private List<SpillFile> runs;
+    transient private LoserTree merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,27 +60,69 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: tuples are
+     * ordered by the first field, then tuples equal on it by the second
+     * one, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need one sort order per sort field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.comparator = new TupleComparator(this.orderByFields, this.ascs);
     }
     
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
+
+    /**
+     * @return the sort fields, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort field, true if it is sorted in ascending order
+     */
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    /**
+     * Set how many tuples may be sorted in memory. Takes effect the next
+     * time the operator is opened.
+     */
+    public void setMaxInMemoryTuples(int maxInMemory) {
+        this.maxInMemory = Math.max(1, maxInMemory);
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -62,21 +131,99 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sort();
         super.open();
     }
 
+    private void sort() throws DbException, TransactionAbortedException {
+        deleteRuns();
+        childTups = new ArrayList<>();
+        runs = new ArrayList<>();
+        while (child.hasNext()) {
+            childTups.add(child.next());
+            if (childTups.size() >= maxInMemory)
+                writeRun();
+        }
+        if (runs.isEmpty()) {
+            // everything fit in memory
+            childTups.sort(comparator);
+            it = childTups.iterator();
+            return;
+        }
+        if (!childTups.isEmpty())
+            writeRun();
+        childTups = null;
+        while (runs.size() > MAX_MERGE_WIDTH)
+            mergePass();
+        startMerge();
+    }
+
+    private void writeRun() throws DbException {
+        childTups.sort(comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups)
+            run.add(t);
+        runs.add(run);
+        childTups.clear();
+    }
+
+    /**
+     * Merge the runs MAX_MERGE_WIDTH at a time into fewer, longer runs.
+     */
+    private void mergePass() throws DbException {
+        List<SpillFile> merged = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += MAX_MERGE_WIDTH) {
+            List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGE_WIDTH));
+            SpillFile out = new SpillFile(td);
+            try (LoserTree tree = new LoserTree(readers(group), comparator)) {
+                Tuple t;
+                while ((t = tree.next()) != null)
+                    out.add(t);
+            }
+            for (SpillFile run : group)
+                run.delete();
+            merged.add(out);
+        }
+        runs = merged;
+    }
+
+    private static List<SpillFile.Reader> readers(List<SpillFile> files) throws DbException {
+        List<SpillFile.Reader> readers = new ArrayList<>(files.size());
+        for (SpillFile f : files)
+            readers.add(f.reader());
+        return readers;
+    }
+
+    private void startMerge() throws DbException {
+        if (merge != null)
+            merge.close();
+        merge = new LoserTree(readers(runs), comparator);
+    }
+
+    private void deleteRuns() {
+        if (merge != null)
+            merge.close();
+        merge = null;
+        if (runs != null) {
+            for (SpillFile run : runs)
+                run.delete();
+        }
+        runs = null;
+    }
+
     public void close() {
         super.close();
         it = null;
+        childTups = null;
+        deleteRuns();
+        child.close();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        if (merge != null)
+            startMerge();
+        else
+            it = childTups.iterator();
     }
 
     /**
@@ -86,7 +233,9 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
+    protected Tuple fetchNext() throws NoSuchElementException, DbException {
+        if (merge != null)
+            return merge.next();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -106,23 +255,33 @@ public class OrderBy extends Operator {
 }
 
 class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
+    final int[] fields;
+    final boolean[] ascs;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        this(new int[]{field}, new boolean[]{asc});
+    }
+
+    public TupleComparator(int[] fields, boolean[] ascs) {
+        this.fields = fields;
+        this.ascs = ascs;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
+        for (int i = 0; i < fields.length; i++) {
+            int c = compare(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return ascs[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    private static int compare(Field t1, Field t2) {
+        if (t1 instanceof IntField)
+            return Integer.compare(((IntField) t1).getValue(), ((IntField) t2).getValue());
         if (t1.compare(Predicate.Op.EQUALS, t2))
             return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        return t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
     }
     
 }
@@ -11,12 +11,15 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
+    private transient BatchOpIterator batchChild;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private int limit = Integer.MAX_VALUE;
+    private transient int returned;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -48,9 +51,28 @@ public class Project extends Operator {
         return td;
     }
 
+    /**
+     * Return at most limit tuples. Once they have been returned, the child
+     * is not read any further.
+     */
+    public void setLimit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.limit = limit;
+    }
+
+    /**
+     * @return the maximum number of tuples returned, Integer.MAX_VALUE if
+     * there is no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        returned = 0;
         super.open();
     }
 
@@ -61,6 +83,7 @@ public class Project extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         child.rewind();
+        returned = 0;
     }
 
     /**
@@ -71,7 +94,8 @@ public class Project extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (!child.hasNext()) return null;
+        if (returned >= limit || !child.hasNext()) return null;
+        returned++;
         Tuple t = child.next();
         Tuple newTuple = new Tuple(td);
         newTuple.setRecordId(t.getRecordId());
@@ -81,6 +105,24 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Returns the child's next batch with only the projected columns. The
+     * column arrays are shared with the child's batch, not copied. The last
+     * batch before the limit is cut short.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (returned >= limit)
+            return null;
+        if (batchChild == null)
+            batchChild = TupleToBatchAdapter.of(child);
+        TupleBatch batch = batchChild.nextBatch();
+        if (batch == null)
+            return null;
+        batch.truncate(limit - returned);
+        returned += batch.numSelected();
+        return batch.project(outFieldIds, td);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -90,6 +132,7 @@ public class Project extends Operator {
     public void setChildren(OpIterator[] children) {
         if (this.child != children[0]) {
             this.child = children[0];
+            this.batchChild = null;
         }
     }
 
@@ -114,10 +114,21 @@ public class Query implements Serializable {
 
         this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        if (op instanceof BatchOpIterator) {
+            // pull whole batches through the operators that support them
+            TupleBatch batch;
+            while ((batch = ((BatchOpIterator) op).nextBatch()) != null) {
+                for (int i = 0; i < batch.numSelected(); i++) {
+                    System.out.println(batch.getTuple(batch.getSelected(i)));
+                    cnt++;
+                }
+            }
+        } else {
+            while (this.hasNext()) {
+                Tuple tup = this.next();
+                System.out.println(tup);
+                cnt++;
+            }
         }
         System.out.println("\n " + cnt + " rows.");
         this.close();
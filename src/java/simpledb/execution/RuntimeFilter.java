@@ -0,0 +1,134 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+/**
+ * A filter on one field built at run time from the join keys of the build
+ * side of a hash join, and pushed down into the scan of the probe side so
+ * that tuples without a match are dropped before a Tuple is created for
+ * them (see {@link SeqScan#setRuntimeFilter}).
+ * <p>
+ * It is a Bloom filter over the hash codes of the keys, plus the smallest
+ * and largest key when they are integers. It may accept values that are not
+ * keys, but never rejects a key. It is a Predicate so that pages can check
+ * it like any other; {@link simpledb.storage.HeapPage#filter} checks integer
+ * values on the page bytes.
+ */
+public class RuntimeFilter extends Predicate {
+
+    private static final long serialVersionUID = 1L;
+
+    // bits set per key, and bits of the filter per expected key: about 2%
+    // of the values that are not keys are accepted
+    private static final int NUM_HASHES = 3;
+    private static final int BITS_PER_KEY = 8;
+
+    private final long[] bits;
+    private final int mask;
+    private final boolean intKeys;
+    private int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+    private int size;
+
+    /**
+     * @param field    the field of the probe tuples to check
+     * @param intKeys  true if the keys are integers, so that their bounds
+     *                 are kept too
+     * @param expected the number of keys expected, to size the filter
+     */
+    public RuntimeFilter(int field, boolean intKeys, int expected) {
+        super(field, Op.EQUALS, null);
+        this.intKeys = intKeys;
+        long numBits = Math.max(64, Long.highestOneBit((long) Math.max(1, expected) * BITS_PER_KEY * 2 - 1));
+        bits = new long[(int) Math.min(numBits / 64, 1 << 24)];
+        mask = bits.length * 64 - 1;
+    }
+
+    private static int hash(Field f) {
+        return f instanceof IntField ? ((IntField) f).getValue() : f.hashCode();
+    }
+
+    /**
+     * Add the hash code of a key; see {@link #add(Field)}.
+     */
+    public void add(int h) {
+        int h1 = h * 0x9E3779B9, h2 = (h * 0x85EBCA6B) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            bits[b >>> 6] |= 1L << b;
+        }
+        if (intKeys) {
+            min = Math.min(min, h);
+            max = Math.max(max, h);
+        }
+        size++;
+    }
+
+    public void add(Field key) {
+        add(hash(key));
+    }
+
+    /**
+     * @return the number of keys added
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return false if v is certainly not the hash code of a key; an
+     * integer key is its own hash code
+     */
+    public boolean mightContain(int v) {
+        if (intKeys && (v < min || v > max))
+            return false;
+        int h1 = v * 0x9E3779B9, h2 = (v * 0x85EBCA6B) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            if ((bits[b >>> 6] & (1L << b)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public boolean mightContain(Field value) {
+        if (intKeys && !(value instanceof IntField))
+            return true;
+        return mightContain(hash(value));
+    }
+
+    /**
+     * @return the smallest integer key, or null if the keys are not
+     * integers or there are none
+     */
+    public IntField getMin() {
+        return intKeys && size > 0 ? new IntField(min) : null;
+    }
+
+    public IntField getMax() {
+        return intKeys && size > 0 ? new IntField(max) : null;
+    }
+
+    /**
+     * @return the fraction of the bits that are set; about fill() to the
+     * power of the number of hashes of the values that are not keys are
+     * accepted
+     */
+    public double fill() {
+        long set = 0;
+        for (long word : bits)
+            set += Long.bitCount(word);
+        return (double) set / (bits.length * 64L);
+    }
+
+    @Override
+    public boolean filter(Tuple t) {
+        return mightContain(t.getField(getField()));
+    }
+
+    public String toString() {
+        return "field = " + getField() + " runtime filter of " + size + " keys"
+                + (intKeys && size > 0 ? " in [" + min + ", " + max + "]" : "");
+    }
+}
@@ -8,6 +8,8 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Morsels;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -18,16 +20,19 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
     private TransactionId tid;
     private int tableId;
     private String tableAlias;
+    private final Morsels morsels;
 
     private DbFileIterator tbItr;
     private boolean isOpen;
+    private RuntimeFilter runtimeFilter;
+    private transient TupleBatch batch;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -44,9 +49,21 @@ public class SeqScan implements OpIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates one of the scans of a parallel scan over a HeapFile: it only
+     * reads the pages it takes from morsels, which it shares with the other
+     * scans. Such a scan cannot be rewound; see {@link Gather}.
+     *
+     * @param morsels the morsels of the table, or null to read all of it
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, Morsels morsels) {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.morsels = morsels;
     }
 
     /**
@@ -57,6 +74,20 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction this scan runs in
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      */
@@ -86,10 +117,32 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Only return the tuples that f accepts, checking it on the pages of
+     * the table before a Tuple is created for them. Replaces any filter set
+     * before, and may be called once the scan is open as long as no tuple
+     * has been read: the scan then starts over.
+     *
+     * @param f the filter, or null to return all tuples
+     * @return false if the filter cannot be applied, because the table is
+     * not a HeapFile or this is one of the scans of a parallel scan
+     */
+    public boolean setRuntimeFilter(RuntimeFilter f) throws DbException, TransactionAbortedException {
+        if (morsels != null || !(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile))
+            return false;
+        runtimeFilter = f;
+        if (isOpen) {
+            tbItr.close();
+            tbItr = fileIterator();
+            tbItr.open();
+        }
+        return true;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         if (isOpen)return;
-        tbItr = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        tbItr = fileIterator();
         tbItr.open();
         isOpen = true;
     }
@@ -136,6 +189,21 @@ public class SeqScan implements OpIterator {
         return null;
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!isOpen) throw new IllegalStateException();
+        if (batch == null)
+            batch = new TupleBatch(getTupleDesc());
+        batch.clear();
+        if (tbItr instanceof HeapFile.HeapFileIterator) {
+            // straight from the pages into the columns
+            ((HeapFile.HeapFileIterator) tbItr).fill(batch);
+        } else {
+            while (!batch.isFull() && tbItr.hasNext())
+                batch.add(tbItr.next());
+        }
+        return batch.numSelected() > 0 ? batch : null;
+    }
+
     public void close() {
         // some code goes here
         if (!isOpen)return;
@@ -148,7 +216,17 @@ public class SeqScan implements OpIterator {
             TransactionAbortedException {
         // some code goes here
         if (!isOpen) throw new IllegalStateException();
-        tbItr = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        if (morsels != null)
+            throw new DbException("a parallel scan cannot be rewound");
+        tbItr = fileIterator();
         tbItr.open();
     }
+
+    private DbFileIterator fileIterator() {
+        if (morsels != null)
+            return ((HeapFile) Database.getCatalog().getDatabaseFile(tableId)).iterator(tid, null, morsels);
+        if (runtimeFilter != null)
+            return ((HeapFile) Database.getCatalog().getDatabaseFile(tableId)).iterator(tid, runtimeFilter);
+        return Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+    }
 }
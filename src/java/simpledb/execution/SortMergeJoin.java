@@ -0,0 +1,218 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin joins two inputs sorted in ascending order of their join
+ * fields, on =, &lt;, &lt;=, &gt; or &gt;=. An input that is not already
+ * sorted (e.g. a scan of a B+ tree on the join field) is sorted with an
+ * {@link OrderBy}, which sorts in bounded memory.
+ * <p>
+ * Equality joins merge the two inputs, keeping in memory only the tuples of
+ * child2 with the current key. For a range predicate, the tuples of one
+ * input that match a tuple of the other are a prefix of the first input,
+ * which only grows as the second input is read: e.g. for child1.f &gt;
+ * child2.f, the child2 tuples below each child1 tuple. That prefix is kept
+ * in memory, and each input is read once, instead of comparing every pair
+ * of tuples as {@link Join} does.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+
+    // the input read a tuple at a time, and the input whose tuples are
+    // kept in memory while they match
+    transient private OpIterator outerChild, innerChild;
+    // the current outer tuple, and the first inner tuple not in matches
+    transient private Tuple outer, nextInner;
+    transient private List<Tuple> matches;
+    transient private int matchPos;
+    transient private boolean started;
+
+    /**
+     * @param p            the predicate to join on
+     * @param child1       the left input
+     * @param child2       the right input
+     * @param child1Sorted true if child1 is sorted in ascending order of
+     *                     the join field, so that it need not be sorted
+     * @param child2Sorted the same for child2
+     * @throws IllegalArgumentException if the predicate is not =, &lt;,
+     *                                  &lt;=, &gt; or &gt;=
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+                         boolean child1Sorted, boolean child2Sorted) {
+        if (!isSupported(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1Sorted ? child1 : new OrderBy(p.getField1(), true, child1);
+        this.child2 = child2Sorted ? child2 : new OrderBy(p.getField2(), true, child2);
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * Join two inputs that are not sorted.
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, false, false);
+    }
+
+    /**
+     * @return true if a sort-merge join can join on op
+     */
+    public static boolean isSupported(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        // for child1.f < child2.f, the matches of a child2 tuple are a
+        // prefix of child1, so child2 is the outer input
+        Predicate.Op op = pred.getOperator();
+        boolean child2Outer = op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ;
+        outerChild = child2Outer ? child2 : child1;
+        innerChild = child2Outer ? child1 : child2;
+        outer = nextInner = null;
+        matches = new ArrayList<>();
+        matchPos = 0;
+        started = false;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    private Tuple readInner() throws DbException, TransactionAbortedException {
+        return innerChild.hasNext() ? innerChild.next() : null;
+    }
+
+    /**
+     * @return true if the outer and inner tuples satisfy the predicate
+     */
+    private boolean joins(Tuple o, Tuple i) {
+        return outerChild == child1 ? pred.filter(o, i) : pred.filter(i, o);
+    }
+
+    /**
+     * Make matches the inner tuples that join with outer.
+     */
+    private void findMatches() throws DbException, TransactionAbortedException {
+        matchPos = 0;
+        if (pred.getOperator() != Predicate.Op.EQUALS) {
+            // the prefix only grows, as the outer input is sorted
+            while (nextInner != null && joins(outer, nextInner)) {
+                matches.add(nextInner);
+                nextInner = readInner();
+            }
+            return;
+        }
+        Field key = outer.getField(pred.getField1());
+        if (!matches.isEmpty() && matches.get(0).getField(pred.getField2()).equals(key))
+            return;
+        matches.clear();
+        while (nextInner != null && nextInner.getField(pred.getField2()).compare(Predicate.Op.LESS_THAN, key))
+            nextInner = readInner();
+        while (nextInner != null && nextInner.getField(pred.getField2()).equals(key)) {
+            matches.add(nextInner);
+            nextInner = readInner();
+        }
+    }
+
+    /**
+     * Returns the next pair of tuples that satisfy the predicate, the
+     * child1 tuple followed by the child2 tuple. Both inputs are read in
+     * ascending order of their join fields.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!started) {
+            nextInner = readInner();
+            started = true;
+        }
+        while (true) {
+            if (outer != null && matchPos < matches.size()) {
+                Tuple inner = matches.get(matchPos++);
+                return outerChild == child1 ? merge(outer, inner) : merge(inner, outer);
+            }
+            if (!outerChild.hasNext())
+                return null;
+            outer = outerChild.next();
+            findMatches();
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples, used by operators that run out
+ * of memory. Tuples are appended with {@link #add} and read back in the
+ * same order with a {@link Reader}, as many times as needed.
+ * <p>
+ * Fields are written back to back with no page header or padding: an int
+ * takes 4 bytes, and a string its length followed by its bytes rather than
+ * the fixed Type.STRING_LEN bytes it takes in a HeapFile page. The file is deleted by
+ * {@link #delete}, or when the JVM exits.
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size;
+
+    /**
+     * Create an empty spill file for tuples of the given TupleDesc.
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb-spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples in this file
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append a tuple to the file.
+     *
+     * @throws IllegalStateException if the file was already read
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("spill file is already being read");
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    out.writeInt(((IntField) t.getField(i)).getValue());
+                } else {
+                    String s = ((StringField) t.getField(i)).getValue();
+                    out.writeInt(s.length());
+                    out.writeBytes(s);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /**
+     * @return a reader over the tuples of this file. No tuple can be added
+     * once the file has been read.
+     */
+    public Reader reader() throws DbException {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            return new Reader(new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)));
+        } catch (IOException e) {
+            throw new DbException("could not read spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the file. It cannot be used afterwards.
+     */
+    public void delete() {
+        try {
+            if (out != null)
+                out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+        file.delete();
+    }
+
+    /**
+     * Reads the tuples of a SpillFile in the order they were added.
+     */
+    public class Reader implements Closeable {
+        private final DataInputStream in;
+        private int remaining = size;
+
+        private Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        public Tuple next() throws DbException {
+            if (remaining == 0)
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        t.setField(i, new IntField(in.readInt()));
+                    } else {
+                        byte[] bs = new byte[in.readInt()];
+                        in.readFully(bs);
+                        t.setField(i, new StringField(new String(bs), Type.STRING_LEN));
+                    }
+                }
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            remaining--;
+            return t;
+        }
+
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
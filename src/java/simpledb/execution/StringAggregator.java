@@ -5,11 +5,14 @@ import simpledb.storage.*;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
+ * <p>
+ * Only the number of tuples of each group is kept, and aggregators built
+ * over different parts of the input can be combined with {@link #merge}.
+ * The groups live in a {@link GroupTable}, which writes them to disk when
+ * there are too many to keep in memory.
  */
 public class StringAggregator implements Aggregator {
 
@@ -19,8 +22,8 @@ public class StringAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private Map<Field, List<Tuple>> group;
-    private List<Tuple> noGroup;
+    private GroupTable group;
+    private GroupState noGroup;
 
     /**
      * Aggregate constructor
@@ -34,14 +37,40 @@ public class StringAggregator implements Aggregator {
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
+        if (what != Op.COUNT)
+            throw new IllegalArgumentException("only COUNT is supported over strings");
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
         if (gbfield == NO_GROUPING)
-            noGroup = new ArrayList<>();
+            noGroup = new GroupState();
         else
-            group = new ConcurrentHashMap<>();
+            group = new GroupTable(gbfieldtype, GroupTable.DEFAULT_MAX_GROUPS);
+    }
+
+    /**
+     * Set the maximum number of groups kept in memory; past it, groups are
+     * written to temporary files (see {@link GroupTable}). Must be called
+     * before any tuple is merged.
+     */
+    public void setMaxGroups(int maxGroups) {
+        if (group != null)
+            group = new GroupTable(gbfieldtype, maxGroups);
+    }
+
+    /**
+     * @return true if some groups did not fit in memory and were written to
+     * disk
+     */
+    public boolean hasSpilled() {
+        return group != null && group.hasSpilled();
+    }
+
+    private GroupState stateOf(Field groupVal) {
+        if (gbfield == NO_GROUPING)
+            return noGroup;
+        return group.get(groupVal);
     }
 
     /**
@@ -51,14 +80,43 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
+        stateOf(gbfield == NO_GROUPING ? null : tup.getField(gbfield)).count++;
+    }
+
+    /**
+     * Counts the rows of each group from the group-by column of the batch,
+     * without creating a Tuple per row.
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int n = batch.numSelected();
         if (gbfield == NO_GROUPING) {
-            noGroup.add(tup);
+            noGroup.count += n;
+        } else if (batch.isIntColumn(gbfield)) {
+            int[] groups = batch.getIntColumn(gbfield);
+            for (int i = 0; i < n; i++)
+                group.get(groups[batch.getSelected(i)])[0].count++;
         } else {
-            Field field = tup.getField(gbfield);
-            List<Tuple> od = group.getOrDefault(field, new ArrayList<>());
-            od.add(tup);
-            group.put(field, od);
+            Field[] groups = batch.getColumn(gbfield);
+            for (int i = 0; i < n; i++)
+                group.get(groups[batch.getSelected(i)]).count++;
+        }
+    }
+
+    public void merge(Aggregator other) {
+        if (!(other instanceof StringAggregator))
+            throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName());
+        StringAggregator o = (StringAggregator) other;
+        if (gbfield == NO_GROUPING) {
+            noGroup.merge(o.noGroup);
+            return;
         }
+        group.merge(o.group);
+    }
+
+    public void close() {
+        if (group != null)
+            group.clear();
     }
 
     /**
@@ -79,33 +137,21 @@ public class StringAggregator implements Aggregator {
             Type[] types = new Type[]{Type.INT_TYPE};
             td = new TupleDesc(types, names);
             Tuple tuple = new Tuple(td);
-            tuple.setField(0, operateOneGroup(noGroup, what, afield));
+            tuple.setField(0, new IntField(noGroup.result(what)));
             tups.add(tuple);
         } else {
             String[] names = new String[]{"groupVal", "aggregateVal"};
             Type[] types = new Type[]{gbfieldtype, Type.INT_TYPE};
             td = new TupleDesc(types, names);
-            for (Map.Entry<Field, List<Tuple>> entry : group.entrySet()) {
-                Tuple tuple = new Tuple(td);
-                tuple.setField(0, entry.getKey());
-                tuple.setField(1, operateOneGroup(entry.getValue(), what, afield));
-                tups.add(tuple);
-            }
-
+            final TupleDesc groupTd = td;
+            return group.iterator(td, (groupVal, states) -> {
+                Tuple tuple = new Tuple(groupTd);
+                tuple.setField(0, groupVal.get(0));
+                tuple.setField(1, new IntField(states[0].result(what)));
+                return tuple;
+            });
         }
         return new TupleIterator(td, tups);
     }
 
-    private Field operateOneGroup(List<Tuple> tups, Op what, int afield) {
-        Integer result = null;
-        switch (what) {
-            case COUNT:
-                result = tups.size();
-                break;
-            default:
-                throw new UnsupportedOperationException("unsupport operator");
-        }
-        return new IntField(result);
-    }
-
 }
@@ -0,0 +1,165 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * TopN returns the first n tuples of its child in the order of an ORDER BY,
+ * i.e. the same tuples as an {@link OrderBy} followed by a LIMIT n, in the
+ * same order.
+ * <p>
+ * Instead of sorting the whole child, it keeps the n best tuples seen so far
+ * in a heap whose root is the worst of them: a new tuple either loses to
+ * the root and is dropped, or replaces it. This takes O(n) memory and
+ * O(m log n) time for a child of m tuples.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int limit;
+    private final TupleComparator comparator;
+
+    transient private List<Tuple> top;
+    transient private Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] ascs, int limit, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need one sort order per sort field");
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.limit = limit;
+        this.comparator = new TupleComparator(this.orderByFields, this.ascs);
+    }
+
+    /**
+     * @return the sort fields, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort field, true if it is sorted in ascending order
+     */
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        top = selectTop();
+        it = top.iterator();
+        super.open();
+    }
+
+    /**
+     * A tuple and its position in the child, which breaks ties so that of
+     * two equal tuples the earlier one comes first, as in OrderBy.
+     */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Read the child and keep its first limit tuples, in order.
+     */
+    private List<Tuple> selectTop() throws DbException, TransactionAbortedException {
+        List<Tuple> result = new ArrayList<>();
+        if (limit == 0)
+            return result;
+        Comparator<Entry> cmp = (a, b) -> {
+            int c = comparator.compare(a.t, b.t);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        // the root of the heap is the worst tuple kept
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, cmp.reversed());
+        long seq = 0;
+        while (child.hasNext()) {
+            Entry e = new Entry(child.next(), seq++);
+            if (heap.size() < limit) {
+                heap.add(e);
+            } else if (cmp.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        List<Entry> entries = new ArrayList<>(heap);
+        entries.sort(cmp);
+        for (Entry e : entries)
+            result.add(e.t);
+        return result;
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        top = null;
+        child.close();
+    }
+
+    public void rewind() {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the kept tuples in order.
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,305 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.List;
+
+/**
+ * TupleBatch holds up to a fixed number of rows in columnar form, for
+ * operators that run a batch at a time (see {@link BatchOpIterator}).
+ * <p>
+ * Int columns are kept unboxed: column i of row r is
+ * <code>getIntColumn(i)[r]</code> if column i is an int column (see
+ * {@link #isIntColumn}), and <code>getColumn(i)[r]</code> otherwise;
+ * {@link #getField} works for both but boxes ints. Rows are appended at
+ * the end, and a selection vector lists the rows that are still part of the
+ * batch, in order: a filter removes rows by shrinking the selection vector
+ * instead of moving any data. Consumers should only look at the selected
+ * rows, i.e. <code>getSelected(0) .. getSelected(numSelected() - 1)</code>.
+ * <p>
+ * Operators reuse their batches, so a batch returned by nextBatch is only
+ * valid until the next call to nextBatch on the same operator.
+ */
+public class TupleBatch {
+
+    /**
+     * Default number of rows in a batch.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    // column i is in ints[i] if it is an int column, and in columns[i] if not
+    private final int[][] ints;
+    private final Field[][] columns;
+    private final RecordId[] recordIds;
+    private int size;
+    private int[] selected;
+    private int numSelected;
+
+    /**
+     * Create an empty batch with room for capacity rows.
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.ints = new int[td.numFields()][];
+        this.columns = new Field[td.numFields()][];
+        for (int i = 0; i < ints.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                columns[i] = new Field[capacity];
+        }
+        this.recordIds = new RecordId[capacity];
+        this.selected = new int[capacity];
+    }
+
+    /**
+     * Create an empty batch with room for {@link #DEFAULT_CAPACITY} rows.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, Field[][] columns, RecordId[] recordIds,
+                       int size, int[] selected, int numSelected) {
+        this.td = td;
+        this.ints = ints;
+        this.columns = columns;
+        this.recordIds = recordIds;
+        this.size = size;
+        this.selected = selected;
+        this.numSelected = numSelected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the maximum number of rows in this batch
+     */
+    public int capacity() {
+        return recordIds.length;
+    }
+
+    /**
+     * @return the number of rows appended to this batch, selected or not
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == recordIds.length;
+    }
+
+    /**
+     * @return the number of selected rows
+     */
+    public int numSelected() {
+        return numSelected;
+    }
+
+    /**
+     * @return the index of the i-th selected row
+     */
+    public int getSelected(int i) {
+        return selected[i];
+    }
+
+    /**
+     * @return true if column i holds ints, read through {@link #getIntColumn}
+     */
+    public boolean isIntColumn(int i) {
+        return ints[i] != null;
+    }
+
+    /**
+     * @return the values of int column i, indexed by row
+     */
+    public int[] getIntColumn(int i) {
+        return ints[i];
+    }
+
+    /**
+     * @return the values of column i, which is not an int column, indexed by
+     * row
+     */
+    public Field[] getColumn(int i) {
+        return columns[i];
+    }
+
+    /**
+     * @return the value of a column in a row, boxed if the column holds ints
+     */
+    public Field getField(int column, int row) {
+        return ints[column] != null ? new IntField(ints[column][row]) : columns[column][row];
+    }
+
+    private void setField(int column, int row, Field f) {
+        if (ints[column] != null)
+            ints[column][row] = ((IntField) f).getValue();
+        else
+            columns[column][row] = f;
+    }
+
+    private void copyField(int column, int row, TupleBatch from, int fromColumn, int fromRow) {
+        if (ints[column] != null)
+            ints[column][row] = from.ints[fromColumn][fromRow];
+        else
+            columns[column][row] = from.columns[fromColumn][fromRow];
+    }
+
+    public RecordId getRecordId(int row) {
+        return recordIds[row];
+    }
+
+    /**
+     * Remove every row.
+     */
+    public void clear() {
+        size = 0;
+        numSelected = 0;
+    }
+
+    /**
+     * Append the fields of t as a new selected row.
+     */
+    public void add(Tuple t) {
+        int row = size++;
+        for (int i = 0; i < columns.length; i++)
+            setField(i, row, t.getField(i));
+        recordIds[row] = t.getRecordId();
+        selected[numSelected++] = row;
+    }
+
+    /**
+     * Append a selected row, and leave it to the caller to set its fields
+     * through {@link #getIntColumn} and {@link #getColumn}. Used to fill a
+     * batch straight from a page.
+     *
+     * @return the index of the new row
+     */
+    public int addRow(RecordId rid) {
+        int row = size++;
+        recordIds[row] = rid;
+        selected[numSelected++] = row;
+        return row;
+    }
+
+    /**
+     * Append a selected row made of the fields of left followed by the fields
+     * of row r of right. Used by joins.
+     */
+    public void addJoined(Tuple left, TupleBatch right, int r) {
+        int row = size++;
+        int n = left.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++)
+            setField(i, row, left.getField(i));
+        for (int i = 0; i < right.columns.length; i++)
+            copyField(n + i, row, right, i, r);
+        recordIds[row] = null;
+        selected[numSelected++] = row;
+    }
+
+    /**
+     * Append a selected row made of the fields of left followed by the fields
+     * of right.
+     */
+    public void addJoined(Tuple left, Tuple right) {
+        int row = size++;
+        int n = left.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++)
+            setField(i, row, left.getField(i));
+        for (int i = n; i < columns.length; i++)
+            setField(i, row, right.getField(i - n));
+        recordIds[row] = null;
+        selected[numSelected++] = row;
+    }
+
+    /**
+     * Keep only the selected rows that satisfy p.
+     */
+    public void filter(Predicate p) {
+        Predicate.Op op = p.getOp();
+        Field operand = p.getOperand();
+        int[] col = ints[p.getField()];
+        int n = 0;
+        if (col != null && operand instanceof IntField) {
+            int c = ((IntField) operand).getValue();
+            for (int i = 0; i < numSelected; i++) {
+                int row = selected[i];
+                if (compare(col[row], op, c))
+                    selected[n++] = row;
+            }
+        } else {
+            for (int i = 0; i < numSelected; i++) {
+                int row = selected[i];
+                if (getField(p.getField(), row).compare(op, operand))
+                    selected[n++] = row;
+            }
+        }
+        numSelected = n;
+    }
+
+    private static boolean compare(int v, Predicate.Op op, int c) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return v == c;
+            case NOT_EQUALS:
+                return v != c;
+            case GREATER_THAN:
+                return v > c;
+            case GREATER_THAN_OR_EQ:
+                return v >= c;
+            case LESS_THAN:
+                return v < c;
+            case LESS_THAN_OR_EQ:
+                return v <= c;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Keep only the first n selected rows.
+     */
+    public void truncate(int n) {
+        if (n < numSelected)
+            numSelected = Math.max(0, n);
+    }
+
+    /**
+     * Return a batch that shares the rows and the selection of this one but
+     * has only the given columns, in the given order. No data is copied.
+     *
+     * @param fields the columns of this batch to keep
+     * @param td     the TupleDesc of the result
+     */
+    public TupleBatch project(List<Integer> fields, TupleDesc td) {
+        int[][] intCols = new int[fields.size()][];
+        Field[][] cols = new Field[fields.size()][];
+        for (int i = 0; i < cols.length; i++) {
+            intCols[i] = ints[fields.get(i)];
+            cols[i] = columns[fields.get(i)];
+        }
+        return new TupleBatch(td, intCols, cols, recordIds, size, selected, numSelected);
+    }
+
+    /**
+     * @return a new Tuple holding the given row
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(recordIds[row]);
+        return t;
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Lets a tuple-at-a-time OpIterator be read a batch at a time: nextBatch
+ * pulls up to a batch worth of tuples from the child with hasNext/next.
+ * Every other call goes straight to the child.
+ */
+public class TupleToBatchAdapter implements BatchOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OpIterator child;
+    private transient TupleBatch batch;
+
+    public TupleToBatchAdapter(OpIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return it, if it can already be read a batch at a time, or else an
+     * adapter around it
+     */
+    public static BatchOpIterator of(OpIterator it) {
+        if (it instanceof BatchOpIterator)
+            return (BatchOpIterator) it;
+        return new TupleToBatchAdapter(it);
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            batch = new TupleBatch(child.getTupleDesc());
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.add(child.next());
+        return batch.numSelected() > 0 ? batch : null;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
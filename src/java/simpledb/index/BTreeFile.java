@@ -1,6 +1,7 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.common.Database;
@@ -32,6 +33,8 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	// the mapping of the pages after the root pointer, when in memory-mapped mode
+	private volatile MappedFile mapped;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +49,8 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		// the file may have been replaced since a channel to it was opened
+		FileChannelCache.close(f);
 	}
 
 	/**
@@ -77,6 +82,23 @@ public class BTreeFile implements DbFile {
 		return td;
 	}
 
+	/**
+	 * Turn memory-mapped mode on or off. In memory-mapped mode, pages other
+	 * than the root pointer page are parsed straight out of a read-only mapping
+	 * of the file instead of being read into a buffer first. Writes are not
+	 * affected.
+	 */
+	public void setMemoryMapped(boolean on) {
+		mapped = on ? new MappedFile(f, BTreeRootPtrPage.getPageSize(), BufferPool.getPageSize()) : null;
+	}
+
+	/**
+	 * @return true if this file is in memory-mapped mode
+	 */
+	public boolean isMemoryMapped() {
+		return mapped != null;
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -87,49 +109,59 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+				int retval = FileChannelCache.read(f, ByteBuffer.wrap(pageBuf), 0);
+				if (retval == 0) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BTreeRootPtrPage.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				ByteBuffer pageBuf = readMapped(id.getPageNumber());
+				if (pageBuf == null) {
+					pageBuf = ByteBuffer.allocate(BufferPool.getPageSize());
+					int retval = FileChannelCache.read(f, pageBuf, pageOffset(id.getPageNumber()));
+					if (retval == 0) {
+						throw new IllegalArgumentException("Read past end of table");
+					}
+					if (retval < BufferPool.getPageSize()) {
+						throw new IllegalArgumentException("Unable to read "
+								+ BufferPool.getPageSize() + " bytes from BTreeFile");
+					}
+					pageBuf.flip();
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				if (id.pgcateg() == BTreePageId.INTERNAL) {
+					return new BTreeInternalPage(id, pageBuf, keyField);
+				} else if (id.pgcateg() == BTreePageId.LEAF) {
+					return new BTreeLeafPage(id, pageBuf, keyField);
+				} else { // id.pgcateg() == BTreePageId.HEADER
+					return new BTreeHeaderPage(id, pageBuf);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the page with the given number from the mapping of the file, or
+	 * null if this file is not in memory-mapped mode or the page is not mapped
+	 */
+	private ByteBuffer readMapped(int pgNo) throws IOException {
+		MappedFile m = mapped;
+		if (m == null)
+			return null;
+		if (m.getPageSize() != BufferPool.getPageSize())
+			mapped = m = new MappedFile(f, BTreeRootPtrPage.getPageSize(), BufferPool.getPageSize());
+		return m.page(pgNo - 1);
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -141,16 +173,15 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
-		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
-		}
+		long offset = id.pgcateg() == BTreePageId.ROOT_PTR ? 0 : pageOffset(id.getPageNumber());
+		FileChannelCache.write(f, ByteBuffer.wrap(data), offset, false);
+	}
+
+	/**
+	 * @return the offset in the file of the non-root-pointer page with the given number
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
 	}
 	
 	/**
@@ -188,7 +219,20 @@ public class BTreeFile implements DbFile {
                                        Field f)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		if (pid.pgcateg() == BTreePageId.LEAF)
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			// keys equal to the entry may also be in its left child
+			if (f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey()))
+				return findLeafPage(tid, dirtypages, e.getLeftChild(), perm, f);
+		}
+		if (e == null)
+			throw new DbException("empty internal page " + pid);
+		return findLeafPage(tid, dirtypages, e.getRightChild(), perm, f);
 	}
 	
 	/**
@@ -232,15 +276,33 @@ public class BTreeFile implements DbFile {
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = page.reverseIterator();
+		for (int i = page.getNumTuples() / 2; i > 0 && it.hasNext(); i--)
+			moving.add(it.next());
+		for (Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+		Field splitKey = newPage.iterator().next().getField(keyField);
+
+		BTreePageId rightId = page.getRightSiblingId();
+		if (rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// the key is copied up
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), splitKey);
+		parent.insertEntry(new BTreeEntry(splitKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, splitKey) ? newPage : page;
 	}
 	
 	/**
@@ -269,15 +331,28 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for (int i = page.getNumEntries() / 2; i > 0 && it.hasNext(); i--)
+			moving.add(it.next());
+		for (BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+
+		// the middle key is pushed up: its right child is already the left
+		// child of the first entry of the new page
+		BTreeEntry middle = page.reverseIterator().next();
+		page.deleteKeyAndRightChild(middle);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(new BTreeEntry(middle.getKey(), page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, middle.getKey()) ? newPage : page;
 	}
 	
 	/**
@@ -565,10 +640,20 @@ public class BTreeFile implements DbFile {
 	public void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
 		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		int toMove = (sibling.getNumTuples() - page.getNumTuples()) / 2;
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for (int i = 0; i < toMove && it.hasNext(); i++)
+			moving.add(it.next());
+		for (Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the key of the entry is the first key of the right-hand page
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(right.iterator().next().getField(keyField));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -644,10 +729,23 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
 		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int toMove = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		for (int i = 0; i < toMove && it.hasNext(); i++)
+			moving.add(it.next());
+
+		// each key rotates through the parent entry: the parent key comes
+		// down in front of the page, and the last key of the sibling goes up
+		BTreePageId firstChild = page.iterator().next().getLeftChild();
+		for (BTreeEntry e : moving) {
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), firstChild));
+			firstChild = e.getRightChild();
+			parentEntry.setKey(e.getKey());
+			leftSibling.deleteKeyAndRightChild(e);
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -671,10 +769,24 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
 		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int toMove = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		for (int i = 0; i < toMove && it.hasNext(); i++)
+			moving.add(it.next());
+
+		// each key rotates through the parent entry: the parent key comes
+		// down at the end of the page, and the first key of the sibling
+		// goes up
+		BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+		for (BTreeEntry e : moving) {
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, e.getLeftChild()));
+			lastChild = e.getLeftChild();
+			parentEntry.setKey(e.getKey());
+			rightSibling.deleteKeyAndLeftChild(e);
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -700,11 +812,24 @@ public class BTreeFile implements DbFile {
 					throws DbException, IOException, TransactionAbortedException {
 
 		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while (it.hasNext())
+			moving.add(it.next());
+		for (Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightId);
+		if (rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -732,12 +857,24 @@ public class BTreeFile implements DbFile {
 					throws DbException, IOException, TransactionAbortedException {
 		
 		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// the parent key comes down between the last child of the left page
+		// and the first child of the right page
+		BTreePageId lastChild = leftPage.reverseIterator().next().getRightChild();
+		BTreePageId firstChild = rightPage.iterator().next().getLeftChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, firstChild));
+
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while (it.hasNext())
+			moving.add(it.next());
+		for (BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -832,13 +969,8 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				FileChannelCache.write(f, ByteBuffer.wrap(BTreeRootPtrPage.createEmptyPageData()), 0, false);
+				FileChannelCache.write(f, ByteBuffer.wrap(BTreeLeafPage.createEmptyPageData()), pageOffset(1), false);
 			}
 		}
 
@@ -894,12 +1026,9 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				emptyPageNo = numPages() + 1;
+				FileChannelCache.write(f, ByteBuffer.wrap(BTreeInternalPage.createEmptyPageData()),
+						pageOffset(emptyPageNo), false);
 			}
 		}
 
@@ -929,13 +1058,13 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		FileChannelCache.write(f, ByteBuffer.wrap(BTreePage.createEmptyPageData()), pageOffset(emptyPageNo), false);
 		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
+		// make sure the page is not in the buffer pool, under any category,
+		// or in the local cache: a committed version of the page it was
+		// before must not be written over it later
+		for (int categ : new int[]{BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER})
+			Database.getBufferPool().discardPage(new BTreePageId(tableid, emptyPageNo, categ));
 		dirtypages.remove(newPageId);
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
@@ -4,12 +4,14 @@ import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.ByteBufferInputStream;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.Page;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -23,6 +25,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn = 0;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -45,9 +48,17 @@ public class BTreeHeaderPage implements Page {
 	 * 
 	 */
 	public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
+		this(id, ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Create a BTreeHeaderPage from the remaining bytes of a buffer, such as a slice
+	 * of a memory-mapped file, without copying them into a byte array first.
+	 */
+	public BTreeHeaderPage(BTreePageId id, ByteBuffer data) throws IOException {
 		this.pid = id;
 		this.numSlots = getNumSlots();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		DataInputStream dis = new DataInputStream(new ByteBufferInputStream(data));
 
 		// Read the next and prev pointers
 		try {
@@ -273,6 +284,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
@@ -2,6 +2,7 @@ package simpledb.index;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import simpledb.common.Catalog;
 import simpledb.common.Database;
@@ -10,6 +11,7 @@ import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.storage.BufferPool;
+import simpledb.storage.ByteBufferInputStream;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
@@ -71,9 +73,17 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+	}
+
+	/**
+	 * Create a BTreeInternalPage from the remaining bytes of a buffer, such as a slice
+	 * of a memory-mapped file, without copying them into a byte array first.
+	 */
+	public BTreeInternalPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxEntries() + 1;
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		DataInputStream dis = new DataInputStream(new ByteBufferInputStream(data));
 
 		// Read the parent pointer
 		try {
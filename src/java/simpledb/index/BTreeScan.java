@@ -5,7 +5,10 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.RuntimeFilter;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -28,6 +31,12 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
+	private RuntimeFilter runtimeFilter;
+	// the next tuple the runtime filter accepts, and whether the scan went
+	// past its largest key
+	private transient Tuple pending;
+	private transient boolean pastMax;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -85,6 +94,7 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
@@ -110,11 +120,44 @@ public class BTreeScan implements OpIterator {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
 
+	/**
+	 * Only return the tuples that f accepts. If f is on the key field, the
+	 * scan starts at its smallest key when there is no index predicate, and
+	 * stops after its largest key. Replaces any filter set before, and may
+	 * be called once the scan is open as long as no tuple has been read: the
+	 * scan then starts over.
+	 * 
+	 * @param f
+	 *            the filter, or null to return all tuples
+	 */
+	public void setRuntimeFilter(RuntimeFilter f) throws DbException, TransactionAbortedException {
+		boolean wasOpen = isOpen;
+		if (wasOpen)
+			close();
+		runtimeFilter = f;
+		BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+		if (ipred != null)
+			it = file.indexIterator(tid, ipred);
+		else if (onKey() && f.getMin() != null)
+			it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, f.getMin()));
+		else
+			it = file.iterator(tid);
+		if (wasOpen)
+			open();
+	}
+
+	private boolean onKey() {
+		return runtimeFilter != null && runtimeFilter.getField() ==
+				((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
 		if (isOpen)
 			throw new DbException("double open on one OpIterator.");
 
 		it.open();
+		pending = null;
+		pastMax = false;
 		isOpen = true;
 	}
 
@@ -134,15 +177,30 @@ public class BTreeScan implements OpIterator {
 	public boolean hasNext() throws TransactionAbortedException, DbException {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
-		return it.hasNext();
+		if (runtimeFilter == null)
+			return it.hasNext();
+		IntField max = onKey() ? runtimeFilter.getMax() : null;
+		while (pending == null && !pastMax && it.hasNext()) {
+			Tuple t = it.next();
+			if (max != null && t.getField(runtimeFilter.getField()).compare(Predicate.Op.GREATER_THAN, max))
+				pastMax = true;
+			else if (runtimeFilter.filter(t))
+				pending = t;
+		}
+		return pending != null;
 	}
 
 	public Tuple next() throws NoSuchElementException,
 	TransactionAbortedException, DbException {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
-
-		return it.next();
+		if (runtimeFilter == null)
+			return it.next();
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Tuple t = pending;
+		pending = null;
+		return t;
 	}
 
 	public void close() {
@@ -3,6 +3,7 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -49,6 +50,21 @@ public class JoinOptimizer {
      */
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, -1);
+    }
+
+    /**
+     * Like {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator)},
+     * given an estimate of the number of tuples of plan1. When plan2 scans a
+     * B+ tree keyed on the join field and plan1 has no more tuples than the
+     * tree has pages, looking up each tuple of plan1 in the tree reads fewer
+     * pages than scanning it, so an {@link IndexNestedLoopJoin} is used.
+     *
+     * @param outerCard
+     *            the estimated number of tuples of plan1, or -1 if unknown
+     */
+    public static OpIterator instantiateJoin(LogicalJoinNode lj, OpIterator plan1,
+                                             OpIterator plan2, int outerCard) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         OpIterator j;
@@ -72,8 +88,20 @@ public class JoinOptimizer {
         }
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
-
-        if (lj.p == Predicate.Op.EQUALS) {
+        boolean sorted1 = LogicalPlan.isSortedOn(plan1, t1id);
+        boolean sorted2 = LogicalPlan.isSortedOn(plan2, t2id);
+
+        if (lj instanceof LogicalSubplanJoinNode && ((LogicalSubplanJoinNode) lj).semi) {
+            // IN, NOT IN and EXISTS: each outer tuple at most once
+            j = new HashSemiJoin(p, plan1, plan2, ((LogicalSubplanJoinNode) lj).anti);
+        } else if (lj.p == Predicate.Op.EQUALS && smallerThanIndex(outerCard, plan2, t2id)) {
+            // a small outer input: look its keys up in the index
+            SeqScan scan = (SeqScan) plan2;
+            j = new IndexNestedLoopJoin(p, plan1, scan.getTransactionId(), scan.getTableId(), scan.getAlias());
+        } else if (lj.p == Predicate.Op.EQUALS && sorted1 && sorted2) {
+            // both inputs are already in order: merge them
+            j = new SortMergeJoin(p, plan1, plan2, true, true);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -85,6 +113,10 @@ public class JoinOptimizer {
             } catch (Exception e) {
                 j = new Join(p, plan1, plan2);
             }
+        } else if (SortMergeJoin.isSupported(lj.p)) {
+            // range predicates: sorting the inputs that are not in order
+            // is cheaper than comparing every pair of tuples
+            j = new SortMergeJoin(p, plan1, plan2, sorted1, sorted2);
         } else {
             j = new Join(p, plan1, plan2);
         }
@@ -93,6 +125,18 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * @return true if plan is a scan of a B+ tree keyed on field, with more
+     *         pages than outerCard
+     */
+    private static boolean smallerThanIndex(int outerCard, OpIterator plan, int field) {
+        if (outerCard < 0 || !(plan instanceof SeqScan))
+            return false;
+        int tableid = ((SeqScan) plan).getTableId();
+        return IndexNestedLoopJoin.isIndexedOn(tableid, field)
+                && outerCard <= ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).numPages();
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -32,15 +34,37 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private final List<String> groupByFields = new ArrayList<>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
+    private int limit = NO_LIMIT;
+
+    /** Value of {@link #getLimit} when the query has no LIMIT clause. */
+    public static final int NO_LIMIT = -1;
+
     private String query;
 //    private Query owner;
 
+    /** Default number of pages from which a table is scanned in parallel. */
+    public static final int DEFAULT_PARALLEL_SCAN_PAGES = 1024;
+
+    private static int parallelScanPages = DEFAULT_PARALLEL_SCAN_PAGES;
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /** Set the number of pages from which a HeapFile is scanned by several
+        threads at once, see {@link Gather}. */
+    public static void setParallelScanThreshold(int pages) {
+        parallelScanPages = pages;
+    }
+
+    /** Set the number of threads of a parallel scan; 1 turns parallel scans off. */
+    public static void setParallelism(int threads) {
+        parallelism = Math.max(1, threads);
+    }
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new ArrayList<>();
@@ -159,6 +183,30 @@ public class LogicalPlan {
         joins.add(lj);
     }
 
+    /** Add a semi-join or an anti-join between a field and a subquery, for
+     *  joinField1 IN (subquery) or NOT IN, or a correlated EXISTS or NOT
+     *  EXISTS: the query then returns each tuple of the table of
+     *  joinField1 at most once, with or without a match in the subquery.
+     *  @param joinField1 The name of the join field, as in
+     *  {@link #addJoin(String, OpIterator, Predicate.Op)}
+     *  @param subplan the subquery, whose join field is the first field of
+     *  its result set
+     *  @param anti true for NOT IN or NOT EXISTS
+     *  @throws ParsingException if the field is ambiguous, or is not in one
+     *      of the tables added via {@link #addScan}
+     */
+    public void addSemiJoin(String joinField1, OpIterator subplan, boolean anti) throws ParsingException {
+        joinField1 = disambiguateName(joinField1);
+
+        String table1 = joinField1.split("[.]")[0];
+        String pureField = joinField1.split("[.]")[1];
+
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, pureField, subplan,
+                Predicate.Op.EQUALS, true, anti);
+        System.out.println("Added subplan " + (anti ? "anti" : "semi") + "-join on " + joinField1);
+        joins.add(lj);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -189,34 +237,64 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query, replacing any aggregate added before.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        addAggregate(Collections.singletonList(op), Collections.singletonList(afield),
+                gfield == null ? Collections.emptyList() : Collections.singletonList(gfield));
+    }
+
+    /** Set the aggregates of the query, all computed in a single pass,
+        and the fields they are grouped by.
+        @param ops the operator of each aggregate
+        @param afields the field of each aggregate
+        @param gfields the fields to group by, possibly none
+     * @throws ParsingException if there is no aggregate, or not an operator
+        for each field
+    */
+    public void addAggregate(List<String> ops, List<String> afields, List<String> gfields) throws ParsingException {
+        if (ops.isEmpty() || ops.size() != afields.size())
+            throw new ParsingException("Need an aggregate operator for each aggregate field");
+        aggOps.clear();
+        aggFields.clear();
+        groupByFields.clear();
+        aggOps.addAll(ops);
+        for (String afield : afields)
+            aggFields.add(disambiguateName(afield));
+        for (String gfield : gfields)
+            groupByFields.add(disambiguateName(gfield));
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  If called more than once,
+        tuples are sorted on the fields in the order they were added.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAscs.add(asc);
+    }
+
+    /** Add a LIMIT clause: only the first n result tuples are returned.
+        @param n the number of tuples to return
+     * @throws ParsingException if n is negative
+    */
+    public void setLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        limit = n;
+    }
+
+    /** @return the LIMIT of this query, or {@link #NO_LIMIT} */
+    public int getLimit() {
+        return limit;
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -292,6 +370,7 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        Map<String,List<Predicate>> tablePredicates = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -336,6 +415,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            tablePredicates.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -344,11 +424,22 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // scan large tables in parallel, with their filters copied into
+        // each worker
+        for (LogicalScanNode table : tables) {
+            DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+            if (parallelism > 1 && f instanceof HeapFile && ((HeapFile) f).numPages() >= parallelScanPages) {
+                subplanMap.put(table.alias, parallelScan(t, (HeapFile) f, table.alias,
+                        tablePredicates.getOrDefault(table.alias, Collections.emptyList())));
+            }
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        Set<String> joined = new HashSet<>();
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
             OpIterator plan2;
@@ -380,9 +471,19 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
+            // the number of tuples of plan1 can only be estimated while it
+            // is a base table under its filters
+            int outerCard = -1;
+            if (!joined.contains(t1name)) {
+                TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(t1name)));
+                if (s != null)
+                    outerCard = s.estimateTableCardinality(filterSelectivities.get(t1name));
+            }
+
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, outerCard);
             subplanMap.put(t1name, j);
+            joined.add(t1name);
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -413,29 +514,37 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
                 TupleDesc td = node.getTupleDesc();
-//                int  id;
                 try {
-//                    id = 
                     td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
                     throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
                 }
+                // the aggregates follow the group-by fields in the output
+                // of the Aggregate
+                int agg = 0;
+                while (agg < aggOps.size() && !(aggOps.get(agg).equals(si.aggOp)
+                        && aggFields.get(agg).equals(si.fname)))
+                    agg++;
+                if (agg == aggOps.size())
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed");
+                outFields.add(groupByFields.size() + agg);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
-                        throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
-                    }
-                    outFields.add(0);
                     TupleDesc td = node.getTupleDesc();
-                    int  id;
+                    int id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
                     }
+                    int g = 0;
+                    while (g < groupByFields.size() && td.fieldNameToIndex(groupByFields.get(g)) != id)
+                        g++;
+                    if (g == groupByFields.size())
+                        throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
+                    outFields.add(g);
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
                     TupleDesc td = node.getTupleDesc();
@@ -461,21 +570,111 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] gfields = new int[groupByFields.size()];
+                for (int j = 0; j < gfields.length; j++)
+                    gfields[j] = td.fieldNameToIndex(groupByFields.get(j));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+                for (int j = 0; j < afields.length; j++) {
+                    afields[j] = td.fieldNameToIndex(aggFields.get(j));
+                    ops[j] = getAggOp(aggOps.get(j));
+                }
+                // input already grouped is aggregated a group at a time
+                aggNode = new Aggregate(node, gfields, afields, ops,
+                        gfields.length > 0 && isOrderedOn(node, gfields));
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int j = 0; j < fields.length; j++) {
+                fields[j] = node.getTupleDesc().fieldNameToIndex(oByFields.get(j));
+                ascs[j] = oByAscs.get(j);
+            }
+            // with a LIMIT, only the first tuples of the ordering are kept
+            if (limit != NO_LIMIT)
+                node = new TopN(fields, ascs, limit, node);
+            else
+                node = new OrderBy(fields, ascs, node);
+        } else if (limit != NO_LIMIT && node instanceof Filter) {
+            ((Filter) node).setLimit(limit);
+        }
+
+        Project project = new Project(outFields, outTypes, node);
+        if (limit != NO_LIMIT)
+            project.setLimit(limit);
+        return project;
+    }
+
+    /** @return true if plan is known to return the tuples with the same
+        values of fields next to each other: a sort whose first keys are
+        these fields, or a scan of a B+ tree keyed on the only field,
+        possibly under filters. */
+    static boolean isOrderedOn(OpIterator plan, int[] fields) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        int[] sortFields = null;
+        if (plan instanceof OrderBy)
+            sortFields = ((OrderBy) plan).getOrderByFields();
+        else if (plan instanceof TopN)
+            sortFields = ((TopN) plan).getOrderByFields();
+        if (sortFields != null) {
+            if (sortFields.length < fields.length)
+                return false;
+            Set<Integer> prefix = new HashSet<>();
+            for (int j = 0; j < fields.length; j++)
+                prefix.add(sortFields[j]);
+            for (int field : fields)
+                if (!prefix.remove(field))
+                    return false;
+            return true;
         }
+        return fields.length == 1 && scansIndexOn(plan, fields[0]);
+    }
 
-        return new Project(outFields, outTypes, node);
+    /** @return true if plan is known to return its tuples in ascending
+        order of field: an ascending sort on it first, or a scan of a B+
+        tree keyed on it, possibly under filters. */
+    static boolean isSortedOn(OpIterator plan, int field) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        if (plan instanceof OrderBy)
+            return ((OrderBy) plan).getOrderByFields()[0] == field && ((OrderBy) plan).getAscs()[0];
+        if (plan instanceof TopN)
+            return ((TopN) plan).getOrderByFields()[0] == field && ((TopN) plan).getAscs()[0];
+        return scansIndexOn(plan, field);
+    }
+
+    /** @return true if plan scans a B+ tree keyed on field, which returns
+        the tuples in key order */
+    private static boolean scansIndexOn(OpIterator plan, int field) {
+        String table;
+        if (plan instanceof SeqScan)
+            table = ((SeqScan) plan).getTableName();
+        else if (plan instanceof BTreeScan)
+            table = ((BTreeScan) plan).getTableName();
+        else
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(table));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /** Build a Gather over parallelism copies of a scan of f followed by
+        the given filters, all sharing the morsels of f. */
+    private static OpIterator parallelScan(TransactionId t, HeapFile f, String alias, List<Predicate> predicates) {
+        Morsels morsels = new Morsels(f);
+        OpIterator[] workers = new OpIterator[parallelism];
+        for (int i = 0; i < workers.length; i++) {
+            OpIterator w = new SeqScan(t, f.getId(), alias, morsels);
+            for (Predicate p : predicates)
+                w = new Filter(p, w);
+            workers[i] = w;
+        }
+        return new Gather(workers, morsels);
     }
 
     public static void main(String[] argv) {
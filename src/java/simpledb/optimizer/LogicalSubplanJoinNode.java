@@ -11,8 +11,18 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
     
     /** The subplan (used on the inner) of the join */
     final OpIterator subPlan;
-    
+
+    /** True for a semi-join, which returns each tuple of table1 with a
+        match in the subplan once (IN, EXISTS), and with anti for an
+        anti-join, which returns those without one (NOT IN, NOT EXISTS) */
+    final boolean semi, anti;
+
     public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred) {
+        this(table1, joinField1, sp, pred, false, false);
+    }
+
+    public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred,
+                                  boolean semi, boolean anti) {
         t1Alias = table1;
         String[] tmps = joinField1.split("[.]");
         if (tmps.length>1)
@@ -22,6 +32,8 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         f1QuantifiedName=t1Alias+"."+f1PureName;
         subPlan = sp;
         p = pred;
+        this.semi = semi || anti;
+        this.anti = anti;
     }
     
     @Override public int hashCode() {
@@ -33,11 +45,13 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        LogicalSubplanJoinNode s2 = (LogicalSubplanJoinNode) o;
+        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && s2.subPlan.equals(subPlan)
+                && s2.semi == semi && s2.anti == anti);
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p, semi, anti);
     }
 
 }
@@ -29,8 +29,17 @@ public class OperatorCardinality {
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
-                    tableAliasToId, tableStats);
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
@@ -49,6 +58,10 @@ public class OperatorCardinality {
                             .estimateTableCardinality(1.0);
                 }
             }
+            if (o instanceof TopN)
+                childC = Math.min(childC, ((TopN) o).getLimit());
+            else if (o instanceof Project)
+                childC = Math.min(childC, ((Project) o).getLimit());
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
@@ -146,9 +159,15 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
-                                                         Map<String, Integer> tableAliasToId,
-                                                         Map<String, TableStats> tableStats) {
+    /**
+     * Cardinality of a join operator other than {@link Join}, e.g. a
+     * {@link HashEquiJoin}, a {@link SortMergeJoin} or an
+     * {@link IndexNestedLoopJoin}.
+     */
+    private static boolean updateJoinCardinality(Operator j, JoinPredicate pred,
+                                                 String field1Name, String field2Name,
+                                                 Map<String, Integer> tableAliasToId,
+                                                 Map<String, TableStats> tableStats) {
 
         OpIterator[] children = j.getChildren();
         OpIterator child1 = children[0];
@@ -156,10 +175,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = field1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = field2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -194,8 +213,8 @@ public class OperatorCardinality {
                     .getTableName()).estimateTableCardinality(1.0);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(pred
+                .getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -12,12 +12,17 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
+    static final String SEMI_JOIN = "⋉";
+    static final String ANTI_JOIN = "▷";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String GATHER = "gather";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(OpIterator root) {
@@ -29,7 +34,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SortMergeJoin
+                || o instanceof IndexNestedLoopJoin || o instanceof HashSemiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -138,18 +144,30 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+            } else if (plan instanceof HashEquiJoin || plan instanceof SortMergeJoin
+                    || plan instanceof IndexNestedLoopJoin || plan instanceof HashSemiJoin) {
+                JoinPredicate jp;
+                String name;
+                if (plan instanceof HashEquiJoin) {
+                    jp = ((HashEquiJoin) plan).getJoinPredicate();
+                    name = HASH_JOIN;
+                } else if (plan instanceof SortMergeJoin) {
+                    jp = ((SortMergeJoin) plan).getJoinPredicate();
+                    name = MERGE_JOIN;
+                } else if (plan instanceof IndexNestedLoopJoin) {
+                    jp = ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                    name = INDEX_JOIN;
+                } else {
+                    jp = ((HashSemiJoin) plan).getJoinPredicate();
+                    name = ((HashSemiJoin) plan).isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                }
+                String field1 = children[0].getTupleDesc().getFieldName(jp.getField1());
+                String field2 = children[1].getTupleDesc().getFieldName(jp.getField2());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", name, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -158,7 +176,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - name.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -174,14 +192,28 @@ public class QueryPlanVisualizer {
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
 
+                TupleDesc childTd = a.getChildren()[0].getTupleDesc();
+                StringBuilder aggs = new StringBuilder();
+                int[] afields = a.aggregateFields();
+                Aggregator.Op[] aops = a.aggregateOps();
+                for (int i = 0; i < afields.length; i++) {
+                    if (i > 0)
+                        aggs.append(", ");
+                    aggs.append(aops[i]).append("(").append(childTd.getFieldName(afields[i])).append(")");
+                }
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    StringBuilder groups = new StringBuilder();
+                    for (int g : a.groupFields()) {
+                        if (groups.length() > 0)
+                            groups.append(",");
+                        groups.append(childTd.getFieldName(g));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -219,13 +251,50 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
+            } else if (plan instanceof Gather) {
+                Gather g = (Gather) plan;
+                thisNode.text = String.format("%1$s(%2$d),card:%3$d", GATHER,
+                        g.getNumWorkers(), g.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (GATHER.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = GATHER.length() / 2;
+                // the children are copies of the same plan, show one of them
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - GATHER.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof OrderBy || plan instanceof TopN) {
+                Operator o = (Operator) plan;
+                StringBuilder fields = new StringBuilder();
+                int[] oFields;
+                boolean[] oAscs;
+                if (plan instanceof OrderBy) {
+                    oFields = ((OrderBy) plan).getOrderByFields();
+                    oAscs = ((OrderBy) plan).getAscs();
+                } else {
+                    oFields = ((TopN) plan).getOrderByFields();
+                    oAscs = ((TopN) plan).getAscs();
+                }
+                for (int i = 0; i < oFields.length; i++) {
+                    if (i > 0)
+                        fields.append(",");
+                    fields.append(children[0].getTupleDesc().getFieldName(oFields[i]));
+                    if (!oAscs[i])
+                        fields.append(" desc");
+                }
+                if (plan instanceof TopN)
+                    fields.append(" limit ").append(((TopN) plan).getLimit());
                 thisNode.text = String.format(
                         "%1$s(%2$s),card:%3$d",
                         ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        fields,o.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
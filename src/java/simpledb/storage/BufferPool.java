@@ -4,16 +4,23 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -41,9 +48,48 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    private Map<PageId, Page> pageBuffer;
-    private int curNum = 0;
-    private int maxNum;
+    /**
+     * Default number of pages a sequential scan reads ahead of itself.
+     */
+    public static final int DEFAULT_PREFETCH_PAGES = 8;
+
+    private static int prefetchPages = DEFAULT_PREFETCH_PAGES;
+
+    // shared by all buffer pools; daemon threads, so they never keep the JVM alive
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "BufferPool-prefetcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Number of pages the background writer writes at a time, holding the
+     * buffer pool.
+     */
+    private static final int WRITER_BATCH = 8;
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "BufferPool-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final PageTable pageTable;
+    private final LockManager lockManager;
+    // the dirty page table: the LSN of the end of the log when each dirty
+    // page was first dirtied since it was last written. Its updates are
+    // logged when it is written, so they come after this recLSN.
+    private final Map<PageId, Long> recLSNs = new ConcurrentHashMap<>();
+    // pages written while the transaction that dirtied them was running
+    private final Map<TransactionId, Set<PageId>> stolen = new ConcurrentHashMap<>();
+    // dirty pages holding the committed changes of the transaction they map
+    // to: the changes are logged, but not yet written (NO FORCE)
+    private final Map<PageId, TransactionId> unwritten = new ConcurrentHashMap<>();
+    // the shared locks the page writer takes, so that no transaction
+    // changes a page while it is written
+    private final TransactionId writerTid = new TransactionId();
+    // pages queued for prefetching, so a page is not queued twice
+    private final Set<PageId> prefetching = ConcurrentHashMap.newKeySet();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -52,8 +98,8 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         // some code goes here
-        pageBuffer = new LinkedHashMap<>();
-        maxNum = numPages;
+        pageTable = new PageTable(numPages);
+        lockManager = new LockManager();
     }
 
     public static int getPageSize() {
@@ -70,6 +116,22 @@ public class BufferPool {
         BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Set how many pages sequential scans read ahead; 0 turns read-ahead off.
+     */
+    public static void setPrefetchPages(int prefetchPages) {
+        BufferPool.prefetchPages = prefetchPages;
+    }
+
+    /**
+     * @return how many pages a sequential scan should read ahead of itself.
+     * Never more than a quarter of the pool, so that read-ahead does not
+     * evict the pages the scan is about to use.
+     */
+    public int getPrefetchWindow() {
+        return Math.min(prefetchPages, pageTable.getCapacity() / 4);
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -88,28 +150,86 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        Page target = null;
-        if (pageBuffer.keySet().contains(pid)) {
-            target = pageBuffer.get(pid);
-        } else {
-            if (curNum == maxNum) {
-                evictPage();
-//                if (page == null) {
-//                    if (pid instanceof HeapPageId) {
-//                        try {
-//                            page = new HeapPage((HeapPageId) pid, new byte[getPageSize()]);
-//                        } catch (IOException e) {
-//                            return null;
-//                        }
-//                    }
-//                }
-                curNum--;
-            }
-            target = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            curNum++;
+        lockManager.acquire(tid, pid, perm);
+        try {
+            return pageTable.getPage(pid, BufferPool::readPage);
+        } catch (DbException e) {
+            // make room by writing the committed pages, if there are any
+            // that the background writer has not written yet
+            flushCommittedPages();
+            return pageTable.getPage(pid, BufferPool::readPage);
         }
-        pageBuffer.put(pid, target);
-        return target;
+    }
+
+    /**
+     * Ask for the specified page to be read into the buffer pool in the
+     * background, so that a later getPage of it does not wait for the disk.
+     * No lock is taken: the page is read from disk only if it is not cached,
+     * and with NO STEAL an uncached page is never dirty, so the disk version
+     * is the committed one. The background writer keeps to this, see
+     * {@link #writeInBackground}. The page may not be read at all, e.g. when the
+     * pool is full of dirty pages.
+     *
+     * @param pid the ID of the page to read
+     */
+    public void prefetchPage(PageId pid) {
+        if (pageTable.peekPage(pid) != null || !prefetching.add(pid))
+            return;
+        prefetcher.execute(() -> {
+            try {
+                pageTable.prefetch(pid, BufferPool::readPage);
+            } catch (DbException | RuntimeException e) {
+                // no room, or the table is gone; getPage will read the page itself
+            } finally {
+                prefetching.remove(pid);
+            }
+        });
+    }
+
+    private static Page readPage(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
+
+    /**
+     * @return the number of getPage calls served from the buffer pool
+     */
+    public long getHitCount() {
+        return pageTable.getHitCount();
+    }
+
+    /**
+     * @return the number of getPage calls that had to read the page from disk
+     */
+    public long getMissCount() {
+        return pageTable.getMissCount();
+    }
+
+    /**
+     * @return the number of pages evicted to make room for other pages
+     */
+    public long getEvictionCount() {
+        return pageTable.getEvictionCount();
+    }
+
+    /**
+     * @return the number of pages read by prefetchPage
+     */
+    public long getPrefetchCount() {
+        return pageTable.getPrefetchCount();
+    }
+
+    /**
+     * @return the number of prefetched pages later asked for with getPage
+     */
+    public long getPrefetchUsedCount() {
+        return pageTable.getPrefetchUsedCount();
+    }
+
+    /**
+     * @return the number of prefetched pages evicted before being asked for
+     */
+    public long getPrefetchWastedCount() {
+        return pageTable.getPrefetchWastedCount();
     }
 
     /**
@@ -124,6 +244,7 @@ public class BufferPool {
     public void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -134,6 +255,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /**
@@ -142,7 +264,7 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -155,6 +277,86 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        // NO STEAL: dirty pages never leave the pool before commit, so they
+        // are simply dropped on abort. NO FORCE: a commit only logs its
+        // pages, and the background writer writes them once their locks
+        // are released. Only flushAllPages and flushPage write pages of
+        // running transactions: the log rolls those back.
+        List<PageId> committed = Collections.emptyList();
+        if (commit) {
+            try {
+                committed = logPages(tid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            // a B+ tree operation changes the pages it write-locks before they
+            // are marked dirty, so one cut short by an abort can leave any
+            // locked page changed; no other transaction can have dirtied them
+            for (PageId pid : lockManager.getLockedPages(tid))
+                rollBackPage(pid);
+            Set<PageId> written = stolen.get(tid);
+            if (written != null) {
+                for (PageId pid : written)
+                    discardPage(pid);
+            }
+        }
+        stolen.remove(tid);
+        lockManager.releaseAll(tid);
+        if (!committed.isEmpty())
+            writeInBackground(committed);
+    }
+
+    /**
+     * Log the pages tid dirtied, as it commits, and keep them in the pool
+     * as its committed versions until they are written.
+     *
+     * @return the ids of the pages
+     */
+    private synchronized List<PageId> logPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        List<PageId> logged = new ArrayList<>();
+        for (Page p : pageTable.pages()) {
+            if (tid.equals(p.isDirty())) {
+                log.logWrite(tid, p.getBeforeImage(), p);
+                p.setBeforeImage();
+                unwritten.put(p.getId(), tid);
+                logged.add(p.getId());
+            }
+        }
+        // pages written before, and not dirtied again, are committed too
+        Set<PageId> written = stolen.get(tid);
+        if (written != null) {
+            for (PageId pid : written) {
+                Page p = pageTable.peekPage(pid);
+                if (p != null && p.isDirty() == null)
+                    p.setBeforeImage();
+            }
+        }
+        return logged;
+    }
+
+    /**
+     * Undo the changes an aborting transaction may have made to a page in
+     * the pool: drop the page, or, if its committed version is not written
+     * yet, go back to that version, its before image.
+     */
+    private synchronized void rollBackPage(PageId pid) {
+        TransactionId committer = unwritten.get(pid);
+        Page p = pageTable.peekPage(pid);
+        if (committer == null || p == null) {
+            discardPage(pid);
+            return;
+        }
+        Page before = p.getBeforeImage();
+        before.setLSN(p.getLSN());
+        before.markDirty(true, committer);
+        try {
+            pageTable.putPage(before);
+        } catch (DbException e) {
+            // the page is cached, so putPage only replaces it
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -177,10 +379,12 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         List<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
+        long lsn = Database.getLogFile().getCurrentLSN();
         for (Page p : pages) {
             p.markDirty(true, tid);
+            recLSNs.putIfAbsent(p.getId(), lsn);
             //因为这些脏页可能是新生成的，所以需要放入buffer
-            pageBuffer.put(p.getId(), p);
+            pageTable.putPage(p);
         }
     }
 
@@ -202,8 +406,11 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         List<Page> pages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
+        long lsn = Database.getLogFile().getCurrentLSN();
         for (Page p : pages) {
             p.markDirty(true, tid);
+            recLSNs.putIfAbsent(p.getId(), lsn);
+            pageTable.putPage(p);
         }
     }
 
@@ -215,14 +422,15 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (Map.Entry<PageId, Page> entry : pageBuffer.entrySet()) {
-            if (entry.getValue().isDirty() != null) {
-                try {
-                    flushPage(entry.getKey());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        List<Page> dirty = new ArrayList<>();
+        for (Page p : pageTable.pages()) {
+            if (p.isDirty() != null)
+                dirty.add(p);
+        }
+        try {
+            writePages(dirty);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -238,15 +446,9 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        Page page = pageBuffer.get(pid);
-        if (page.isDirty() != null) {
-            try {
-                flushPage(pid);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        pageBuffer.remove(pid);
+        pageTable.removePage(pid);
+        recLSNs.remove(pid);
+        unwritten.remove(pid);
     }
 
     /**
@@ -257,8 +459,10 @@ public class BufferPool {
     private synchronized void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = pageBuffer.get(pid);
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        Page page = pageTable.peekPage(pid);
+        if (page == null)
+            return;
+        writePages(Collections.singletonList(page));
     }
 
     /**
@@ -267,20 +471,143 @@ public class BufferPool {
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        List<Page> dirty = new ArrayList<>();
+        for (Page p : pageTable.pages()) {
+            if (tid.equals(p.isDirty()))
+                dirty.add(p);
+        }
+        writePages(dirty);
+        for (Page p : dirty)
+            p.setBeforeImage();
+        // pages written before, and not dirtied again, are committed too
+        Set<PageId> written = stolen.get(tid);
+        if (written != null) {
+            for (PageId pid : written) {
+                Page p = pageTable.peekPage(pid);
+                if (p != null && p.isDirty() == null)
+                    p.setBeforeImage();
+            }
+        }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * @return true if p holds the committed changes of a transaction that
+     * are logged but not written
      */
-    private synchronized void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        Iterator<Map.Entry<PageId, Page>> itr = pageBuffer.entrySet().iterator();
-        if (itr.hasNext()) {
-            itr.next();
-            itr.remove();
+    private boolean isCommitted(Page p) {
+        TransactionId dirtier = p.isDirty();
+        return dirtier != null && dirtier.equals(unwritten.get(p.getId()));
+    }
+
+    /**
+     * Write pages to disk, write-ahead logging the dirty ones: an update
+     * record is logged for each page of a running transaction (committed
+     * pages were logged at commit), then the log is flushed once, up to the
+     * last of them, before any page is written.
+     */
+    private synchronized void writePages(List<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        long lsn = -1;
+        List<Page> running = new ArrayList<>();
+        for (Page p : pages) {
+            if (p.isDirty() == null)
+                continue;
+            if (!isCommitted(p)) {
+                log.logWrite(p.isDirty(), p.getBeforeImage(), p);
+                running.add(p);
+            }
+            lsn = Math.max(lsn, p.getLSN());
+        }
+        if (lsn >= 0)
+            log.flushTo(lsn);
+        for (Page p : pages) {
+            TransactionId dirtier = p.isDirty();
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            p.markDirty(false, null);
+            recLSNs.remove(p.getId());
+            unwritten.remove(p.getId());
+            if (running.contains(p))
+                stolen.computeIfAbsent(dirtier, k -> ConcurrentHashMap.newKeySet()).add(p.getId());
         }
     }
 
+    /**
+     * Write those of the given pages that hold committed changes. Each is
+     * written under a shared lock, so that no transaction changes it
+     * meanwhile; pages whose lock is not free right away are skipped.
+     */
+    private synchronized void writeCommitted(Collection<PageId> pids) throws IOException {
+        List<Page> batch = new ArrayList<>();
+        for (PageId pid : pids) {
+            Page p = pageTable.peekPage(pid);
+            if (p == null || !isCommitted(p))
+                continue;
+            if (!lockManager.tryAcquire(writerTid, pid, Permissions.READ_ONLY))
+                continue;
+            // the lock may have been given up by the transaction that just
+            // changed the page
+            if (isCommitted(p) && pageTable.peekPage(pid) == p)
+                batch.add(p);
+            else
+                lockManager.release(writerTid, pid);
+        }
+        try {
+            writePages(batch);
+        } finally {
+            lockManager.releaseAll(writerTid);
+        }
+    }
+
+    /**
+     * Write every page that holds committed changes, e.g. to make room in a
+     * pool full of dirty pages, or before the pool is thrown away.
+     */
+    public synchronized void flushCommittedPages() {
+        try {
+            writeCommitted(new ArrayList<>(unwritten.keySet()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return a snapshot of the dirty page table: the recLSN of each dirty
+     * page, before which the log has no update of the page that may be
+     * missing from disk
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(recLSNs);
+    }
+
+    /**
+     * Write those of the given pages that hold committed changes, in the
+     * background, a few at a time, so that transactions are only held up
+     * for a batch at a time. Used after commits, which only log their
+     * pages, and by checkpoints, which no longer write pages themselves.
+     * Pages of running transactions are skipped: NO STEAL keeps them in the
+     * pool until their transaction commits or drops them at abort. A page
+     * is written under a shared lock, so that no transaction changes it
+     * meanwhile, and skipped if that lock is not free.
+     *
+     * @return a future that completes once the pages are written
+     */
+    public Future<?> writeInBackground(Collection<PageId> pids) {
+        List<PageId> todo = new ArrayList<>(pids);
+        return writer.submit(() -> {
+            for (int i = 0; i < todo.size(); i += WRITER_BATCH) {
+                synchronized (this) {
+                    // a reset database no longer owns these pages
+                    if (Database.getBufferPool() != this)
+                        return;
+                    try {
+                        writeCommitted(todo.subList(i, Math.min(todo.size(), i + WRITER_BATCH)));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
 }
@@ -0,0 +1,47 @@
+package simpledb.storage;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over the remaining bytes of a ByteBuffer. Lets the page
+ * parsers, which read through a DataInputStream, read straight out of a
+ * memory-mapped file without first copying the page into a byte array.
+ * Reading advances the position of the given buffer.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buf;
+
+    public ByteBufferInputStream(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+        return buf.hasRemaining() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (!buf.hasRemaining())
+            return -1;
+        len = Math.min(len, buf.remaining());
+        buf.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+        buf.position(buf.position() + k);
+        return k;
+    }
+
+    @Override
+    public int available() {
+        return buf.remaining();
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FileChannelCache keeps one open {@link FileChannel} per data file, shared
+ * by every DbFile backed by that file, and does positional page I/O on it.
+ * <p>
+ * Positional reads and writes do not move a shared file pointer, so any number
+ * of threads can read and write pages of the same file through one channel
+ * without locking. Channels stay open for as long as the file is in use; when
+ * more than {@link #MAX_OPEN_CHANNELS} files are open, the least recently used
+ * channel is closed. A channel can also be closed under a reader (by that
+ * eviction, or because another thread was interrupted during I/O), so
+ * operations that hit a closed channel reopen it and retry once.
+ * <p>
+ * A cached channel keeps referring to the old file if the file is deleted and
+ * created again under the same name, so DbFiles drop the cached channel of
+ * their file when they are constructed.
+ *
+ * @Threadsafe
+ */
+public class FileChannelCache {
+
+    /**
+     * Maximum number of channels kept open at the same time.
+     */
+    public static final int MAX_OPEN_CHANNELS = 256;
+
+    private static final Map<File, FileChannel> channels =
+            new LinkedHashMap<File, FileChannel>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<File, FileChannel> eldest) {
+                    if (size() <= MAX_OPEN_CHANNELS)
+                        return false;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+
+    private FileChannelCache() {
+    }
+
+    /**
+     * @return the open channel for the given file, opening it if needed
+     */
+    public static synchronized FileChannel getChannel(File f) throws IOException {
+        File key = f.getAbsoluteFile();
+        FileChannel ch = channels.get(key);
+        if (ch == null || !ch.isOpen()) {
+            ch = FileChannel.open(key.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            channels.put(key, ch);
+        }
+        return ch;
+    }
+
+    /**
+     * Read from f at the given position until dst is full or the end of the
+     * file is reached.
+     *
+     * @return the number of bytes read
+     */
+    public static int read(File f, ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        try {
+            readFully(getChannel(f), dst, position);
+        } catch (ClosedChannelException e) {
+            if (e instanceof ClosedByInterruptException)
+                throw e;
+            dst.position(start);
+            readFully(getChannel(f), dst, position);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Write all of src to f at the given position.
+     *
+     * @param force if true, also force the file's content to the device
+     */
+    public static void write(File f, ByteBuffer src, long position, boolean force) throws IOException {
+        int start = src.position();
+        try {
+            writeFully(getChannel(f), src, position, force);
+        } catch (ClosedChannelException e) {
+            if (e instanceof ClosedByInterruptException)
+                throw e;
+            src.position(start);
+            writeFully(getChannel(f), src, position, force);
+        }
+    }
+
+    /**
+     * Close the channel of the given file, if it is open. Must be called
+     * before the file is deleted or replaced under the same name.
+     */
+    public static synchronized void close(File f) {
+        FileChannel ch = channels.remove(f.getAbsoluteFile());
+        if (ch != null)
+            closeQuietly(ch);
+    }
+
+    /**
+     * Close every open channel.
+     */
+    public static synchronized void closeAll() {
+        Iterator<FileChannel> it = channels.values().iterator();
+        while (it.hasNext()) {
+            closeQuietly(it.next());
+            it.remove();
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = ch.read(dst, position);
+            if (n < 0)
+                break;
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer src, long position, boolean force) throws IOException {
+        while (src.hasRemaining())
+            position += ch.write(src, position);
+        if (force)
+            ch.force(false);
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -4,10 +4,13 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
+import simpledb.execution.TupleBatch;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -26,6 +29,14 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc td;
+    // the mapping of the file, when in memory-mapped mode
+    private volatile MappedFile mapped;
+
+    /**
+     * Number of consecutive pages an iterator must read before it starts
+     * reading ahead.
+     */
+    private static final int SEQUENTIAL_RUN = 2;
 
 
     /**
@@ -38,6 +49,8 @@ public class HeapFile implements DbFile {
         // some code goes here
         file = f;
         this.td = td;
+        // the file may have been replaced since a channel to it was opened
+        FileChannelCache.close(f);
     }
 
     /**
@@ -76,22 +89,48 @@ public class HeapFile implements DbFile {
         return td;
     }
 
+    /**
+     * Turn memory-mapped mode on or off. In memory-mapped mode, pages are
+     * parsed straight out of a read-only mapping of the file instead of being
+     * read into a buffer first, which saves a copy per page read for tables
+     * that are mostly scanned. Writes are not affected.
+     */
+    public void setMemoryMapped(boolean on) {
+        mapped = on ? new MappedFile(file, 0, BufferPool.getPageSize()) : null;
+    }
+
+    /**
+     * @return true if this file is in memory-mapped mode
+     */
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        int pageNumber = pid.getPageNumber();
         int pageSize = BufferPool.getPageSize();
-        try {
-            RandomAccessFile raf = new RandomAccessFile(this.file, "r");
-            raf.seek((long) pageNumber * pageSize);
-            byte[] data = new byte[pageSize];
-            for (int i = 0; i < pageSize; i++) {
-                data[i] = raf.readByte();
+        MappedFile m = mapped;
+        if (m != null) {
+            if (m.getPageSize() != pageSize)
+                mapped = m = new MappedFile(file, 0, pageSize);
+            try {
+                ByteBuffer buf = m.page(pid.getPageNumber());
+                if (buf == null)
+                    throw new IllegalArgumentException("Read past end of table");
+                return new HeapPage((HeapPageId) pid, buf);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-            raf.close();
-            return new HeapPage((HeapPageId) pid, data);
-        } catch (Exception e) {
-            return null;
+        }
+        byte[] data = new byte[pageSize];
+        try {
+            int n = FileChannelCache.read(file, ByteBuffer.wrap(data), (long) pid.getPageNumber() * pageSize);
+            if (n < pageSize)
+                throw new IllegalArgumentException("Read past end of table");
+            return HeapPage.fromOwnedData((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -99,15 +138,9 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        PageId id = page.getId();
-        int tableId = id.getTableId();
-        int pn = id.getPageNumber();
-
-        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-        RandomAccessFile rws = new RandomAccessFile(hf.getFile(), "rws");
-        rws.skipBytes(pn * BufferPool.getPageSize());
-        rws.write(page.getPageData());
-        rws.close();
+        // force the write, as the "rws" handle used to do
+        long offset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+        FileChannelCache.write(file, ByteBuffer.wrap(page.getPageData()), offset, true);
     }
 
     /**
@@ -123,24 +156,35 @@ public class HeapFile implements DbFile {
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        int pgNo = 0;
-        HeapPage page = null;
+        BufferPool bp = Database.getBufferPool();
         List<Page> pages = new ArrayList<>();
-        for (; pgNo < numPages(); pgNo++) {
-            page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pgNo), Permissions.READ_WRITE);
+        for (int pgNo = 0; pgNo < numPages(); pgNo++) {
+            HeapPageId pid = new HeapPageId(getId(), pgNo);
+            // look for free space under a shared lock, so that inserts do not
+            // serialize on every full page of the file
+            boolean wasLocked = bp.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+            if (page.getNumEmptySlots() == 0) {
+                if (!wasLocked)
+                    bp.unsafeReleasePage(tid, pid);
+                continue;
+            }
+            page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
             if (page.getNumEmptySlots() != 0) {
                 page.insertTuple(t);
                 pages.add(page);
                 return pages;
             }
         }
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file, true));
-        byte[] emptyPageData = HeapPage.createEmptyPageData();
-        bos.write(emptyPageData);
-        bos.close();
 
-        HeapPageId heapPageId = new HeapPageId(getId(), pgNo);
-        page = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
+        HeapPageId heapPageId;
+        synchronized (this) {
+            int pgNo = numPages();
+            FileChannelCache.write(file, ByteBuffer.wrap(HeapPage.createEmptyPageData()),
+                    (long) pgNo * BufferPool.getPageSize(), false);
+            heapPageId = new HeapPageId(getId(), pgNo);
+        }
+        HeapPage page = (HeapPage) bp.getPage(tid, heapPageId, Permissions.READ_WRITE);
         page.insertTuple(t);
 
         pages.add(page);
@@ -163,55 +207,168 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new DbFileIterator() {
-            private int nextPage = 0;
-            private Iterator<Tuple> tupleItr;
+        return iterator(tid, null);
+    }
 
-            private boolean isOpen;
+    /**
+     * Returns an iterator over the tuples of this file that satisfy p, or
+     * over all of them if p is null. The predicate is checked on the page
+     * bytes, so no Tuple is created for tuples that do not satisfy it.
+     *
+     * @see HeapPage#filter
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate p) {
+        return new HeapFileIterator(tid, p, null);
+    }
 
-            private HeapPage getPageFromPool() throws TransactionAbortedException, DbException {
-                return (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), nextPage++), Permissions.READ_ONLY);
-            }
+    /**
+     * Returns an iterator over the tuples that satisfy p in the pages of
+     * this file it takes from morsels. Several iterators sharing the same
+     * Morsels, each in its own thread, read every page of the file once
+     * between them. Such an iterator cannot be rewound: reset the Morsels
+     * and open new iterators instead.
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate p, Morsels morsels) {
+        return new HeapFileIterator(tid, p, morsels);
+    }
 
-            @Override
-            public void open() throws DbException, TransactionAbortedException {
-                tupleItr = getPageFromPool().iterator();
-                isOpen = true;
-            }
+    /**
+     * The iterator of a HeapFile. Besides returning tuples one at a time,
+     * it can fill a {@link TupleBatch} straight from the pages.
+     */
+    public class HeapFileIterator implements DbFileIterator {
+        private final TransactionId tid;
+        private final Predicate p;
+        private final Morsels morsels;
+
+        // the next page to read, and for a morsel scan the end of the
+        // current morsel
+        private int nextPage = 0;
+        private int endPage = 0;
+        // the page being read, and the next slot of it to look at
+        private HeapPage page;
+        private int slot;
+
+        private boolean isOpen;
+
+        // read-ahead state: length of the current run of consecutive
+        // pages, and the last page handed to the prefetcher
+        private int lastPage = -1;
+        private int run = 0;
+        private int prefetchedTo = -1;
+
+        HeapFileIterator(TransactionId tid, Predicate p, Morsels morsels) {
+            this.tid = tid;
+            this.p = p;
+            this.morsels = morsels;
+        }
 
-            @Override
-            public boolean hasNext() throws DbException, TransactionAbortedException {
-                if (!isOpen) return false;
-                while (true) {
-                    if (tupleItr.hasNext()) return true;
-                    else if (nextPage < numPages()) {
-                        tupleItr = getPageFromPool().iterator();
-                    } else
-                        break;
-                }
+        /**
+         * @return true if there is a page left to read, after taking a new
+         * morsel if the current one is done
+         */
+        private boolean hasPage() {
+            if (morsels == null)
+                return nextPage < numPages();
+            if (nextPage < endPage)
+                return true;
+            int start = morsels.take();
+            if (start < 0)
                 return false;
-            }
+            nextPage = start;
+            endPage = morsels.end(start);
+            return true;
+        }
 
-            @Override
-            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                if (!isOpen) throw new NoSuchElementException();
-                return tupleItr.next();
-            }
+        private HeapPage getPageFromPool() throws TransactionAbortedException, DbException {
+            BufferPool bp = Database.getBufferPool();
+            int pgNo = nextPage++;
+            run = pgNo == lastPage + 1 ? run + 1 : 1;
+            lastPage = pgNo;
+            if (run >= SEQUENTIAL_RUN)
+                readAhead(bp, pgNo);
+            return (HeapPage) bp.getPage(tid, new HeapPageId(getId(), pgNo), Permissions.READ_ONLY);
+        }
+
+        private void readAhead(BufferPool bp, int pgNo) {
+            // a morsel scan only reads ahead within its morsel, the pages
+            // after it belong to other threads
+            int end = morsels == null ? numPages() : endPage;
+            int last = Math.min(pgNo + bp.getPrefetchWindow(), end - 1);
+            for (int p = Math.max(pgNo + 1, prefetchedTo + 1); p <= last; p++)
+                bp.prefetchPage(new HeapPageId(getId(), p));
+            prefetchedTo = Math.max(prefetchedTo, last);
+        }
 
-            @Override
-            public void rewind() throws DbException, TransactionAbortedException {
-                if (!isOpen) return;
-                nextPage = 0;
-                tupleItr = getPageFromPool().iterator();
+        /**
+         * Move to the next page, if the current one has no slot left.
+         *
+         * @return false once every page was read
+         */
+        private boolean advance() throws DbException, TransactionAbortedException {
+            if (page != null && slot < page.numSlots)
+                return true;
+            if (!hasPage()) {
+                page = null;
+                return false;
             }
+            page = getPageFromPool();
+            slot = 0;
+            return true;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            page = null;
+            isOpen = true;
+            advance();
+        }
 
-            @Override
-            public void close() {
-                if (!isOpen) return;
-                isOpen = false;
-                tupleItr = null;
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!isOpen) return false;
+            while (advance()) {
+                slot = page.nextSlot(slot, p);
+                if (slot < page.numSlots)
+                    return true;
             }
-        };
+            return false;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext()) throw new NoSuchElementException();
+            return page.getTuple(slot++);
+        }
+
+        /**
+         * Append the next tuples to batch until it is full or the scan is
+         * done. The fields are decoded from the pages into the columns of
+         * the batch, without creating a Tuple for each row.
+         */
+        public void fill(TupleBatch batch) throws DbException, TransactionAbortedException {
+            if (!isOpen) throw new NoSuchElementException();
+            while (!batch.isFull() && advance())
+                slot = page.addToBatch(slot, p, batch);
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            if (!isOpen) return;
+            if (morsels != null)
+                throw new DbException("a morsel scan cannot be rewound");
+            nextPage = 0;
+            prefetchedTo = -1;
+            page = null;
+            advance();
+        }
+
+        @Override
+        public void close() {
+            if (!isOpen) return;
+            isOpen = false;
+            page = null;
+        }
     }
 
 }
@@ -4,14 +4,27 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.execution.RuntimeFilter;
+import simpledb.execution.TupleBatch;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its bytes as they are laid out on disk, and reads fields
+ * straight out of them by offset. A Tuple is only created for a slot when
+ * someone asks for it, and predicates can be checked on the bytes without
+ * creating one at all (see {@link #filter}). getPageData is a copy of the
+ * bytes, and the before image is only copied when the page is first
+ * modified.
  *
  * @see HeapFile
  * @see BufferPool
@@ -20,15 +33,24 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
-
+    final int headerSize;
+    final int tupleSize;
+    // offset of each field within a tuple
+    final int[] fieldOffsets;
+    // the page as stored on disk: header bytes, then the tuple slots
+    final byte[] data;
+    // tuples created so far, by slot; the array publishes them safely to
+    // other threads reading the same cached page
+    final AtomicReferenceArray<Tuple> tuples;
+
+    // null while the page has not changed since its before image was set
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
 
     private boolean isDirty;
     private TransactionId dirtyTid;
+    private long lsn;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -48,27 +70,51 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()),
+                Arrays.copyOf(data, BufferPool.getPageSize()));
+    }
+
+    /**
+     * Create a HeapPage from the remaining bytes of a buffer, such as a slice
+     * of a memory-mapped file. The bytes are copied in one piece; no field is
+     * decoded until it is needed.
+     * The format is the one described in {@link #HeapPage(HeapPageId, byte[])}.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), copyOf(data));
+    }
+
+    /**
+     * Create a HeapPage that takes ownership of data, which must be a whole
+     * page and must not be used by the caller afterwards.
+     */
+    private HeapPage(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+        if (data.length < BufferPool.getPageSize())
+            throw new EOFException("page data is too short");
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int i = 1; i < fieldOffsets.length; i++)
+            fieldOffsets[i] = fieldOffsets[i - 1] + td.getFieldType(i - 1).getLen();
+        this.data = data;
+        this.tuples = new AtomicReferenceArray<>(numSlots);
+    }
 
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
+    /**
+     * Read a page in from a HeapFile without copying it: data becomes the
+     * page's own buffer.
+     */
+    static HeapPage fromOwnedData(HeapPageId id, byte[] data) throws IOException {
+        return new HeapPage(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
 
-        setBeforeImage();
+    private static byte[] copyOf(ByteBuffer buf) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        buf.get(data, 0, Math.min(data.length, buf.remaining()));
+        return data;
     }
 
     /**
@@ -105,7 +151,7 @@ public class HeapPage implements Page {
         try {
             byte[] oldDataRef = null;
             synchronized (oldDataLock) {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : data;
             }
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
@@ -118,7 +164,19 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = null;
+        }
+    }
+
+    /**
+     * Keep a copy of the current data as the before image, unless the page
+     * was already modified since the before image was set. Called before
+     * every change to data.
+     */
+    private void saveBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = data.clone();
         }
     }
 
@@ -131,38 +189,86 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
+
+    private int readInt(int off) {
+        return (data[off] << 24) | ((data[off + 1] & 0xff) << 16)
+                | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decode field i of the tuple in the given slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    public Field getField(int slotId, int i) {
+        int off = slotOffset(slotId) + fieldOffsets[i];
+        Type type = td.getFieldType(i);
+        if (type == Type.INT_TYPE)
+            return new IntField(readInt(off));
+        if (type == Type.STRING_TYPE) {
+            int len = Math.max(0, Math.min(readInt(off), Type.STRING_LEN));
+            return new StringField(new String(data, off + 4, len), Type.STRING_LEN);
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
         try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            return type.parse(new DataInputStream(new ByteArrayInputStream(data, off, type.getLen())));
         } catch (java.text.ParseException e) {
-            e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
+    }
 
-        return t;
+    /**
+     * Return the tuple in the given slot, creating it on first use.
+     */
+    Tuple getTuple(int slotId) {
+        Tuple t = tuples.get(slotId);
+        if (t != null)
+            return t;
+        t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j = 0; j < td.numFields(); j++)
+            t.setField(j, getField(slotId, j));
+        // a thread that created the tuple first wins, so all see one tuple
+        return tuples.compareAndSet(slotId, null, t) ? t : tuples.get(slotId);
+    }
+
+    /**
+     * Check p against the tuple in the given slot. Integer comparisons are
+     * done on the page bytes, without creating a Tuple or a Field.
+     *
+     * @return true if the slot is used and its tuple satisfies p
+     */
+    public boolean filter(int slotId, Predicate p) {
+        if (!isSlotUsed(slotId))
+            return false;
+        if (p instanceof RuntimeFilter) {
+            RuntimeFilter f = (RuntimeFilter) p;
+            if (td.getFieldType(p.getField()) == Type.INT_TYPE)
+                return f.mightContain(readInt(slotOffset(slotId) + fieldOffsets[p.getField()]));
+            return f.mightContain(getField(slotId, p.getField()));
+        }
+        Field operand = p.getOperand();
+        if (td.getFieldType(p.getField()) != Type.INT_TYPE || !(operand instanceof IntField))
+            return getField(slotId, p.getField()).compare(p.getOp(), operand);
+
+        int v = readInt(slotOffset(slotId) + fieldOffsets[p.getField()]);
+        int c = ((IntField) operand).getValue();
+        switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return v == c;
+            case NOT_EQUALS:
+                return v != c;
+            case GREATER_THAN:
+                return v > c;
+            case GREATER_THAN_OR_EQ:
+                return v >= c;
+            case LESS_THAN:
+                return v < c;
+            case LESS_THAN_OR_EQ:
+                return v <= c;
+        }
+        return false;
     }
 
     /**
@@ -177,64 +283,7 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -264,9 +313,11 @@ public class HeapPage implements Page {
         // not necessary for lab1
         int tn = t.getRecordId().getTupleNumber();
         if (isSlotUsed(tn)) {
-            Tuple tuple = tuples[tn];
-            //if (!tuple.equals(t)) throw new DbException("wrong tuple");
+            saveBeforeImage();
             markSlotUsed(tn, false);
+            tuples.set(tn, null);
+            // empty slots are stored as zeroes
+            Arrays.fill(data, slotOffset(tn), slotOffset(tn) + tupleSize, (byte) 0);
         } else throw new DbException("tuple not exist");
     }
 
@@ -283,8 +334,24 @@ public class HeapPage implements Page {
         // not necessary for lab1
         int pn = getAvailableSlot();
         if (pn == -1) throw new DbException("page full");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e.getMessage());
+        }
+        byte[] bytes = baos.toByteArray();
+        if (bytes.length != tupleSize)
+            throw new DbException("tupledesc is mismatch");
+
+        saveBeforeImage();
+        System.arraycopy(bytes, 0, data, slotOffset(pn), tupleSize);
         t.setRecordId(new RecordId(pid, pn));
-        tuples[pn] = t;
+        tuples.set(pn, t);
         markSlotUsed(pn, true);
     }
 
@@ -308,24 +375,27 @@ public class HeapPage implements Page {
         return isDirty ? dirtyTid : null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
         int valid = 0;
-        for (byte b : header) {//byte!!!not int...waste to much time
-            while (b != 0) {
-                b &= b - 1;
-                valid++;
-            }
-        }
-//        System.out.printf("!!!!numuples: %d",getNumTuples());
-        return getNumTuples() - valid;
+        for (int i = 0; i < headerSize; i++)
+            valid += Integer.bitCount(data[i] & 0xff);
+        return numSlots - valid;
     }
 
     private int getAvailableSlot() {
-        for (int i = 0; i < tuples.length; i++) {
+        for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) return i;
         }
         return -1;
@@ -337,7 +407,7 @@ public class HeapPage implements Page {
     public boolean isSlotUsed(int i) {
         // some code goes here
         int idx = i / 8, mod = i % 8;
-        return ((header[idx] >> mod) & 1) == 1;
+        return ((data[idx] >> mod) & 1) == 1;
     }
 
     /**
@@ -346,14 +416,45 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        boolean used = isSlotUsed(i);
-
         int idx = i / 8, mod = i % 8;
         byte x = (byte) (1 << mod);
         if (value)
-            header[idx] |= x;
+            data[idx] |= x;
         else
-            header[idx] &= ~x;
+            data[idx] &= ~x;
+    }
+
+    /**
+     * @return the first slot from slotId on that is used and whose tuple
+     * satisfies p, or any used slot if p is null; the number of slots if
+     * there is none
+     */
+    int nextSlot(int slotId, Predicate p) {
+        while (slotId < numSlots && !(p == null ? isSlotUsed(slotId) : filter(slotId, p)))
+            slotId++;
+        return slotId;
+    }
+
+    /**
+     * Append the tuples of the slots from slotId on that satisfy p, or of
+     * all used slots if p is null, to batch until it is full. The fields
+     * are decoded from the page bytes straight into the columns of the
+     * batch, without creating a Tuple.
+     *
+     * @return the slot to continue from, or the number of slots once every
+     * slot was looked at
+     */
+    public int addToBatch(int slotId, Predicate p, TupleBatch batch) {
+        for (slotId = nextSlot(slotId, p); slotId < numSlots && !batch.isFull(); slotId = nextSlot(slotId + 1, p)) {
+            int row = batch.addRow(new RecordId(pid, slotId));
+            for (int i = 0; i < fieldOffsets.length; i++) {
+                if (batch.isIntColumn(i))
+                    batch.getIntColumn(i)[row] = readInt(slotOffset(slotId) + fieldOffsets[i]);
+                else
+                    batch.getColumn(i)[row] = getField(slotId, i);
+            }
+        }
+        return slotId;
     }
 
     /**
@@ -362,13 +463,21 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        return iterator(null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy p, or
+     * over all tuples if p is null. Only the tuples returned are created.
+     */
+    public Iterator<Tuple> iterator(Predicate p) {
         return new Iterator<Tuple>() {
             private int idx = 0;
 
             @Override
             public boolean hasNext() {
-                while (idx < tuples.length) {
-                    if (isSlotUsed(idx)) return true;
+                while (idx < numSlots) {
+                    if (p == null ? isSlotUsed(idx) : filter(idx, p)) return true;
                     else idx++;
                 }
                 return false;
@@ -377,8 +486,7 @@ public class HeapPage implements Page {
             @Override
             public Tuple next() {
                 if (hasNext()) {
-                    //System.out.println("get tuple at index:"+idx);
-                    return tuples[idx++];
+                    return getTuple(idx++);
                 }
                 return null;
             }
@@ -386,4 +494,3 @@ public class HeapPage implements Page {
     }
 
 }
-
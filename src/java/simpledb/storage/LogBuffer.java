@@ -0,0 +1,97 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * An OutputStream that appends to the end of a log file through an
+ * in-memory buffer. LogFile serializes its records into it through a
+ * DataOutputStream, so that the many small writes of a record are array
+ * stores, and the file is only written in large sequential chunks: when the
+ * buffer fills up, or when the log is flushed.
+ * <p>
+ * The buffer does not position the file for reads: callers that read the
+ * file must {@link #drain} it first. Not thread safe; LogFile only uses it
+ * while holding its own lock.
+ */
+class LogBuffer extends OutputStream {
+
+    /** Default size of the buffer, in bytes. */
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final RandomAccessFile file;
+    private final byte[] buf;
+    // the offset in the file of buf[0]
+    private long start;
+    private int count;
+
+    /**
+     * @param file     the log file
+     * @param start    the offset in the file at which to append
+     * @param capacity the size of the buffer
+     */
+    LogBuffer(RandomAccessFile file, long start, int capacity) {
+        this.file = file;
+        this.start = start;
+        this.buf = new byte[capacity];
+    }
+
+    /**
+     * @return the offset in the file of the next byte written, whether it
+     * is still in the buffer or not
+     */
+    long position() {
+        return start + count;
+    }
+
+    /**
+     * @return the number of bytes written but not yet written to the file
+     */
+    int pending() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length)
+            drain();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buf.length - count)
+            drain();
+        if (len >= buf.length) {
+            // as large as the buffer: no point in copying it
+            file.seek(start);
+            file.write(b, off, len);
+            start += len;
+            return;
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Write the buffered bytes to the file, without forcing them to disk.
+     */
+    void drain() throws IOException {
+        if (count == 0)
+            return;
+        file.seek(start);
+        file.write(buf, 0, count);
+        start += count;
+        count = 0;
+    }
+
+    /**
+     * Same as {@link #drain}: flushing the stream only hands the bytes to
+     * the file system.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+}
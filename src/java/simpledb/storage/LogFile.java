@@ -2,12 +2,25 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -60,23 +73,44 @@ CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of the offset of the previous BEGIN or UPDATE
+record of their transaction, the id of the page they change and the
+byte ranges of the page that the change rewrote, with their bytes
+before and after it (see {@link PageDelta}).  The id is a byte giving the
+type of page, then the table id and page number as integers.  Ranges
+are taken between the after image and the image the transaction last
+logged for the page, so that redoing the records of a page in order, or
+undoing them in reverse, passes through every logged image.  The
+previous record offsets chain the records of a transaction backwards, from
+its last UPDATE record to its BEGIN record, so it can be undone without
+scanning the log.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  It is followed by the dirty page table of
+the buffer pool: an integer count of pages, then the page id (as in
+UPDATE records) and the offset of the recLSN of each page.  Any UPDATE
+record of a dirty page is at or after its recLSN.
 
 </ul>
+
+<p> Records are serialized into an in-memory {@link LogBuffer}, which
+writes them to the file in large chunks; they are only sure to be in the
+file once the log is forced.  Each record has a log sequence number
+(LSN): its offset in the file, plus the bytes cut off by truncations.
+An UPDATE record sets the LSN of its after image, and the buffer pool
+calls {@link #flushTo} with the LSN of a page before writing the page.
 */
 public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
+    // records are appended through buffer, and read back with raf once
+    // the buffer is drained
+    private LogBuffer buffer; //protected by this
+    private DataOutputStream out; //writes to buffer //protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -86,14 +120,53 @@ public class LogFile {
     static final int CHECKPOINT_RECORD = 5;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // the type of page an UPDATE record changes: a heap page, or
+    // BTREE_PAGE plus the category of a B+ tree page (see BTreePageId)
+    static final int HEAP_PAGE = 0;
+    static final int BTREE_PAGE = 1;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int PAGE_ID_SIZE = 1 + 2 * INT_SIZE;
+
+    // the threads recover() rebuilds pages with
+    static final int RECOVERY_THREADS = Runtime.getRuntime().availableProcessors();
 
     long currentOffset = -1;//protected by this
+    // the LSN of a record is lsnBase plus its offset in the file.
+    // Truncating the log moves the records to lower offsets and adds the
+    // bytes cut off to lsnBase, so that LSNs only ever grow.
+    long lsnBase = 0; //protected by this
+    // every record with a lower LSN is on disk
+    private volatile long durableLSN = 0;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // the offset of the last BEGIN or UPDATE record of each live
+    // transaction, where its back-chain starts
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
+    // for each live transaction, the image of each page in its last UPDATE
+    // record
+    final Map<Long,Map<PageId,byte[]>> tidToLoggedImages = new HashMap<>();
+
+    /** Default longest time, in microseconds, the flusher waits for more
+        commits before forcing the log; 0 forces as soon as the previous
+        force is done. */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+    /** Default number of commits after which the flusher stops waiting. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 64;
+
+    // group commit: committers queue a future and wait for it; the
+    // flusher thread forces the log once for all the commits queued while
+    // it was forcing, and completes their futures
+    private final ArrayDeque<CompletableFuture<Void>> commitQueue = new ArrayDeque<>(); //protected by commitQueue
+    private Thread flusher; //protected by commitQueue
+    private volatile long groupCommitDelay = DEFAULT_GROUP_COMMIT_DELAY;
+    private volatile int groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
+    private long forceCount = 0; //protected by commitQueue
+    // milliseconds the flusher thread waits for a commit before it exits
+    private static final long FLUSHER_IDLE_TIME = 1000;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -109,6 +182,7 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        openBuffer();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -132,11 +206,17 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            openBuffer();
+            currentOffset = buffer.position();
         }
     }
 
+    // append to the end of raf
+    private void openBuffer() throws IOException {
+        buffer = new LogBuffer(raf, raf.length(), LogBuffer.DEFAULT_CAPACITY);
+        out = new DataOutputStream(buffer);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -160,12 +240,14 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = buffer.position();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
+                tidToLoggedImages.remove(tid.getId());
             }
         }
     }
@@ -173,23 +255,164 @@ public class LogFile {
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
 
+        The force is a group commit: the record is appended while
+        holding the log, but the caller then waits, without holding it,
+        for the flusher thread, which forces the log once for all the
+        commits that arrived while it was forcing the previous batch.
+
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = buffer.position();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            tidToLoggedImages.remove(tid.getId());
+        }
+        awaitForce();
+    }
+
+    /** Set how the flusher groups commits: after the first commit of a
+        batch arrives, it waits up to maxDelay microseconds for up to
+        maxBatch commits before forcing the log. Longer delays save
+        forces under many concurrent commits, at the cost of commit
+        latency.
+    */
+    public void setGroupCommit(long maxDelay, int maxBatch) {
+        groupCommitDelay = Math.max(0, maxDelay);
+        groupCommitBatch = Math.max(1, maxBatch);
+    }
+
+    /** @return the number of times the flusher forced the log */
+    public long getForceCount() {
+        synchronized (commitQueue) {
+            return forceCount;
+        }
+    }
+
+    /** @return the LSN the next record appended to the log will get */
+    public synchronized long getCurrentLSN() {
+        // an undecided log is reset before the next record
+        return recoveryUndecided ? LONG_SIZE : lsnBase + buffer.position();
+    }
+
+    /** @return the LSN below which every record is on disk */
+    public long getDurableLSN() {
+        return durableLSN;
+    }
+
+    /** Make sure the record with the given LSN, and every record before
+        it, is on disk. Used to write ahead the log records of a page
+        before the page itself: unless the log is already on disk up to
+        that record, this waits for the flusher like a commit, so page
+        writes and commits share forces.
+
+        @param lsn The LSN of a record, e.g. a page's {@link Page#getLSN}
+    */
+    public void flushTo(long lsn) throws IOException {
+        if (lsn < durableLSN)
+            return;
+        if (Thread.holdsLock(this))
+            force(); // the flusher would wait for our lock
+        else
+            awaitForce();
+    }
+
+    /** Wait until the flusher forced everything appended to the log so far. */
+    private void awaitForce() throws IOException {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (commitQueue) {
+            if (flusher == null) {
+                flusher = new Thread(this::flushLoop, "LogFile-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            commitQueue.add(done);
+            commitQueue.notifyAll();
+        }
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the log force");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void flushLoop() {
+        List<CompletableFuture<Void>> batch = new ArrayList<>();
+        while (true) {
+            synchronized (commitQueue) {
+                try {
+                    while (commitQueue.isEmpty()) {
+                        commitQueue.wait(FLUSHER_IDLE_TIME);
+                        if (commitQueue.isEmpty()) {
+                            // let the thread go while nobody commits; the
+                            // next commit starts another one
+                            flusher = null;
+                            return;
+                        }
+                    }
+                    long deadline = System.nanoTime() + groupCommitDelay * 1000;
+                    long left;
+                    while (commitQueue.size() < groupCommitBatch && (left = deadline - System.nanoTime()) > 0)
+                        commitQueue.wait(left / 1000000, (int) (left % 1000000));
+                } catch (InterruptedException e) {
+                    // keep serving the committers that are waiting
+                }
+                batch.addAll(commitQueue);
+                commitQueue.clear();
+                forceCount++;
+            }
+            // every record of the batch was appended before its future was
+            // queued, so one force covers them all
+            IOException error = null;
+            try {
+                FileChannel channel;
+                long end;
+                synchronized (this) {
+                    buffer.drain();
+                    end = lsnBase + buffer.position();
+                    channel = raf.getChannel();
+                }
+                try {
+                    channel.force(true);
+                    synchronized (this) {
+                        durableLSN = Math.max(durableLSN, end);
+                    }
+                } catch (ClosedChannelException e) {
+                    // the log was truncated into a new file meanwhile
+                    force();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            for (CompletableFuture<Void> f : batch) {
+                if (error == null)
+                    f.complete(null);
+                else
+                    f.completeExceptionally(error);
+            }
+            batch.clear();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
         (with provided         before and after images.)
+        Only the bytes that changed since the last image of the page
+        logged by tid, or since the before image, are logged.
+        The LSN of the record becomes the LSN of the after image; the
+        record is buffered, so the caller must {@link #flushTo} that LSN
+        before it writes the page.
+
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -199,93 +422,56 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + buffer.position());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           offset of the previous record of the transaction
+           page id (see writePageId)
+           changed byte ranges (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageId pid = after.getId();
+        Map<PageId, byte[]> logged = tidToLoggedImages.computeIfAbsent(tid.getId(), k -> new HashMap<>());
+        byte[] oldData = logged.get(pid);
+        if (oldData == null)
+            oldData = before.getPageData();
+        byte[] newData = after.getPageData();
+
+        long lsn = lsnBase + currentOffset;
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
+        Long prev = tidToLastLogRecord.put(tid.getId(), currentOffset);
+        out.writeLong(prev == null ? -1 : prev);
+
+        writePageId(out, pid);
+        PageDelta.diff(oldData, newData).writeTo(out);
+        out.writeLong(currentOffset);
+        currentOffset = buffer.position();
+        after.setLSN(lsn);
+        logged.put(pid, newData);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        if (pid instanceof BTreePageId)
+            out.writeByte(BTREE_PAGE + ((BTreePageId) pid).pgcateg());
+        else
+            out.writeByte(HEAP_PAGE);
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+    PageId readPageId(DataInput in) throws IOException {
+        int type = in.readByte();
+        int tableId = in.readInt();
+        int pgNo = in.readInt();
+        if (type == HEAP_PAGE)
+            return new HeapPageId(tableId, pgNo);
+        return new BTreePageId(tableId, pgNo, type - BTREE_PAGE);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,53 +486,65 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToLastLogRecord.put(tid.getId(), currentOffset);
+        currentOffset = buffer.position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+
+        The checkpoint is fuzzy: it does not write pages, and only holds
+        the log while it appends its record, so transactions keep running
+        meanwhile.  The record lists the active transactions and the
+        dirty page table of the buffer pool; the buffer pool then writes
+        those of them whose transactions have ended in the background, so
+        that later checkpoints can truncate more of the log.
+
+        @see BufferPool#writeInBackground
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        BufferPool bp = Database.getBufferPool();
+        Map<PageId, Long> dirtyPages;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            dirtyPages = bp.getDirtyPageTable();
+            long startCpOffset = buffer.position();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table, with the offset of each recLSN
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(Math.max(LONG_SIZE, e.getValue() - lsnBase));
             }
+
+            out.writeLong(currentOffset);
+            currentOffset = buffer.position();
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        bp.writeInBackground(dirtyPages.keySet());
         logTruncate();
     }
 
@@ -354,6 +552,7 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        buffer.drain();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -379,12 +578,20 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
+
+            // keep the records that may not be on the dirty pages yet
+            int numDirty = raf.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                readPageId(raf);
+                minLogRecord = Math.min(minLogRecord, raf.readLong());
+            }
         }
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
+        RandomAccessFile newRaf = new RandomAccessFile(newFile, "rw");
+        LogBuffer newBuffer = new LogBuffer(newRaf, 0, LogBuffer.DEFAULT_CAPACITY);
+        DataOutputStream logNew = new DataOutputStream(newBuffer);
         logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
 
         raf.seek(minLogRecord);
@@ -392,9 +599,10 @@ public class LogFile {
         //have to rewrite log records since offsets are different after truncation
         while (true) {
             try {
+                long oldStart = raf.getFilePointer();
                 int type = raf.readInt();
                 long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+                long newStart = newBuffer.position();
 
                 Debug.log("NEW START = " + newStart);
 
@@ -403,11 +611,10 @@ public class LogFile {
 
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                    long prev = raf.readLong();
+                    logNew.writeLong(prev < minLogRecord ? -1 : (prev - minLogRecord) + LONG_SIZE);
+                    writePageId(logNew, readPageId(raf));
+                    PageDelta.readFrom(raf).writeTo(logNew);
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
@@ -418,12 +625,24 @@ public class LogFile {
                         logNew.writeLong(xid);
                         logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
                     }
+                    int numDirty = raf.readInt();
+                    logNew.writeInt(numDirty);
+                    while (numDirty-- > 0) {
+                        writePageId(logNew, readPageId(raf));
+                        logNew.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
+                    }
                     break;
                 case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                    // only transactions still running need their records
+                    if (tidToFirstLogRecord.containsKey(record_tid))
+                        tidToFirstLogRecord.put(record_tid, newStart);
                     break;
                 }
 
+                Long last = tidToLastLogRecord.get(record_tid);
+                if (last != null && last == oldStart)
+                    tidToLastLogRecord.put(record_tid, newStart);
+
                 //all xactions finish with a pointer
                 logNew.writeLong(newStart);
                 raf.readLong();
@@ -435,14 +654,20 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
+        newBuffer.drain();
+        newRaf.getChannel().force(true);
+        newRaf.close();
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
         raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
+        openBuffer();
         newFile.delete();
 
-        currentOffset = raf.getFilePointer();
+        // the records kept their LSNs, and are all on disk
+        lsnBase += minLogRecord - LONG_SIZE;
+        currentOffset = buffer.position();
+        durableLSN = lsnBase + currentOffset;
         //print();
     }
 
@@ -452,6 +677,9 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        The UPDATE records of the transaction are found by following its
+        back-chain from its last record, so only they are read.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
@@ -459,11 +687,71 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long last = tidToLastLogRecord.get(tid.getId());
+                if (last == null)
+                    throw new NoSuchElementException("rollback: transaction " + tid.getId() + " is not live");
+                buffer.drain();
+
+                // the chain visits the records of a page newest first,
+                // which is the order to undo them in
+                Map<PageId, List<PageDelta>> undo = new HashMap<>();
+                for (long offset = last; offset != -1; ) {
+                    raf.seek(offset);
+                    if (raf.readInt() != UPDATE_RECORD)
+                        break; // reached the BEGIN record
+                    raf.readLong();
+                    offset = raf.readLong();
+                    PageId pid = readPageId(raf);
+                    undo.computeIfAbsent(pid, k -> new ArrayList<>()).add(PageDelta.readFrom(raf));
+                }
+                for (Map.Entry<PageId, List<PageDelta>> e : undo.entrySet()) {
+                    restorePage(e.getKey(), Collections.<PageDelta>emptyList(), e.getValue());
+                    Database.getBufferPool().discardPage(e.getKey());
+                }
             }
         }
     }
 
+    /** Apply the redo deltas, in order, and then the undo deltas, in
+        order, to the image of a page on disk, and write the page back.
+        Pages of different ids can be restored concurrently.
+    */
+    private static void restorePage(PageId pid, List<PageDelta> redo, List<PageDelta> undo)
+        throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] data;
+        try {
+            data = file.readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            // the page was logged, but never written to the file
+            boolean rootPtr = pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR;
+            data = new byte[rootPtr ? BTreeRootPtrPage.getPageSize() : BufferPool.getPageSize()];
+        }
+        for (PageDelta delta : redo)
+            delta.redo(data);
+        for (PageDelta delta : undo)
+            delta.undo(data);
+        file.writePage(newPage(pid, data));
+    }
+
+    /** @return a page of the type pid names, holding data */
+    private static Page newPage(PageId pid, byte[] data) throws IOException {
+        if (!(pid instanceof BTreePageId))
+            return new HeapPage((HeapPageId) pid, data);
+        BTreePageId bid = (BTreePageId) pid;
+        switch (bid.pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return new BTreeRootPtrPage(bid, data);
+        case BTreePageId.HEADER:
+            return new BTreeHeaderPage(bid, data);
+        default:
+            int keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(bid.getTableId())).keyField();
+            if (bid.pgcateg() == BTreePageId.INTERNAL)
+                return new BTreeInternalPage(bid, data, keyField);
+            return new BTreeLeafPage(bid, data, keyField);
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -481,18 +769,217 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        The log is read once, from the oldest record the last checkpoint
+        may still need, and its changes are sorted by page: the changes
+        of committed transactions that may not be on disk, to redo in log
+        order, and the changes of the losers -- transactions that neither
+        committed nor aborted -- to undo, found by following the
+        back-chain of each loser.  Each page then only depends on its own
+        lists, so a pool of threads rebuilds the pages in parallel, each
+        thread taking the pages whose ids hash to it.  Finally an ABORT
+        record is logged for each loser.
+
+        Aborted transactions were rolled back on disk before their ABORT
+        record was logged, so their changes are neither redone nor undone.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                buffer.drain();
+                if (raf.length() < LONG_SIZE) {
+                    // no log to recover from
+                    raf.setLength(0);
+                    raf.seek(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    openBuffer();
+                    currentOffset = buffer.position();
+                    return;
+                }
+
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                long scanStart = LONG_SIZE;
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    raf.seek(cpLoc);
+                    if (raf.readInt() != CHECKPOINT_RECORD)
+                        throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                    raf.readLong();
+                    scanStart = cpLoc;
+                    int numOutstanding = raf.readInt();
+                    for (int i = 0; i < numOutstanding; i++) {
+                        raf.readLong();
+                        scanStart = Math.min(scanStart, raf.readLong());
+                    }
+                    int numDirty = raf.readInt();
+                    for (int i = 0; i < numDirty; i++) {
+                        PageId pid = readPageId(raf);
+                        long recLSN = raf.readLong();
+                        dirtyPages.put(pid, recLSN);
+                        scanStart = Math.min(scanStart, recLSN);
+                    }
+                }
+
+                // the single scan
+                List<LoggedUpdate> updates = new ArrayList<>();
+                Map<Long, LoggedUpdate> updateAt = new HashMap<>();
+                Map<Long, Long> losers = new HashMap<>(); // tid -> last record
+                Set<Long> committed = new HashSet<>();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        Channels.newInputStream(raf.getChannel().position(scanStart))));
+                long end = scanStart;
+                while (true) {
+                    long start = end;
+                    int type;
+                    long tid;
+                    LoggedUpdate update = null;
+                    try {
+                        type = in.readInt();
+                        tid = in.readLong();
+                        long size = INT_SIZE + 2 * LONG_SIZE;
+                        if (type == UPDATE_RECORD) {
+                            long prev = in.readLong();
+                            PageId pid = readPageId(in);
+                            PageDelta delta = PageDelta.readFrom(in);
+                            update = new LoggedUpdate(tid, start, prev, pid, delta);
+                            size += LONG_SIZE + PAGE_ID_SIZE + delta.size();
+                        } else if (type == CHECKPOINT_RECORD) {
+                            int numXactions = in.readInt();
+                            for (int i = 0; i < 2 * numXactions; i++)
+                                in.readLong();
+                            int numDirty = in.readInt();
+                            for (int i = 0; i < numDirty; i++) {
+                                readPageId(in);
+                                in.readLong();
+                            }
+                            size += 2 * INT_SIZE + numXactions * 2 * LONG_SIZE + numDirty * (PAGE_ID_SIZE + LONG_SIZE);
+                        }
+                        // a record cut off by the crash ends the log
+                        if (in.readLong() != start)
+                            break;
+                        end = start + size;
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    switch (type) {
+                    case BEGIN_RECORD:
+                        losers.put(tid, start);
+                        break;
+                    case UPDATE_RECORD:
+                        losers.put(tid, start);
+                        updates.add(update);
+                        updateAt.put(start, update);
+                        break;
+                    case COMMIT_RECORD:
+                        losers.remove(tid);
+                        committed.add(tid);
+                        break;
+                    case ABORT_RECORD:
+                        losers.remove(tid);
+                        break;
+                    }
+                }
+
+                // pages that were clean at the checkpoint had every change
+                // logged before it on disk
+                Map<PageId, List<PageDelta>> redo = new HashMap<>();
+                for (LoggedUpdate u : updates) {
+                    Long recLSN = dirtyPages.get(u.pid);
+                    if (committed.contains(u.tid)
+                            && (cpLoc == NO_CHECKPOINT_ID || u.offset > cpLoc || (recLSN != null && u.offset >= recLSN)))
+                        redo.computeIfAbsent(u.pid, k -> new ArrayList<>()).add(u.delta);
+                }
+                Map<PageId, List<PageDelta>> undo = new HashMap<>();
+                for (long last : losers.values()) {
+                    for (LoggedUpdate u = updateAt.get(last); u != null; u = updateAt.get(u.prev))
+                        undo.computeIfAbsent(u.pid, k -> new ArrayList<>()).add(u.delta);
+                }
+                Set<PageId> pages = new HashSet<>(redo.keySet());
+                pages.addAll(undo.keySet());
+                restorePages(pages, redo, undo);
+                for (PageId pid : pages)
+                    Database.getBufferPool().discardPage(pid);
+
+                // drop the cut off record, if any, and append after the
+                // last whole one
+                raf.setLength(end);
+                openBuffer();
+                currentOffset = buffer.position();
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                tidToLoggedImages.clear();
+                for (long tid : losers.keySet()) {
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    currentOffset = buffer.position();
+                }
+                force();
             }
          }
     }
 
+    /** Restore pages on RECOVERY_THREADS threads, partitioned by the hash
+        of their ids, so that each page is restored by a single thread.
+    */
+    private void restorePages(Set<PageId> pages, Map<PageId, List<PageDelta>> redo,
+                              Map<PageId, List<PageDelta>> undo) throws IOException {
+        int threads = Math.min(RECOVERY_THREADS, pages.size());
+        if (threads == 0)
+            return;
+        List<List<PageId>> partitions = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            partitions.add(new ArrayList<>());
+        for (PageId pid : pages)
+            partitions.get(Math.floorMod(pid.hashCode(), threads)).add(pid);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> done = new ArrayList<>();
+            for (List<PageId> partition : partitions) {
+                done.add(pool.submit(() -> {
+                    for (PageId pid : partition)
+                        restorePage(pid, redo.getOrDefault(pid, Collections.<PageDelta>emptyList()),
+                                    undo.getOrDefault(pid, Collections.<PageDelta>emptyList()));
+                    return null;
+                }));
+            }
+            for (Future<Void> f : done)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while recovering");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // an UPDATE record read back by recover()
+    private static class LoggedUpdate {
+        final long tid;
+        final long offset;
+        final long prev;
+        final PageId pid;
+        final PageDelta delta;
+
+        LoggedUpdate(long tid, long offset, long prev, PageId pid, PageDelta delta) {
+            this.tid = tid;
+            this.offset = offset;
+            this.prev = prev;
+            this.pid = pid;
+            this.delta = delta;
+        }
+    }
+
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
+        buffer.drain();
         long curOffset = raf.getFilePointer();
 
         raf.seek(0);
@@ -532,25 +1019,27 @@ public class LogFile {
                         System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                         System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
+                    int numDirty = raf.readInt();
+                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                    while (numDirty-- > 0) {
+                        PageId dirtyPid = readPageId(raf);
+                        System.out.println(raf.getFilePointer() + ": PAGE " + dirtyPid + " RECLSN OFFSET: " + raf.readLong());
+                    }
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
+                    System.out.println(raf.getFilePointer() + ": PREVIOUS RECORD: " + raf.readLong());
                     long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    PageId pid = readPageId(raf);
 
                     long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                    PageDelta delta = PageDelta.readFrom(raf);
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println(start + ": page " + pid);
+                    System.out.println(middle + " TO " + (raf.getFilePointer()) + ": " + delta.numRanges() + " changed ranges");
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
@@ -568,7 +1057,9 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
+        buffer.drain();
         raf.getChannel().force(true);
+        durableLSN = lsnBase + buffer.position();
     }
 
 }
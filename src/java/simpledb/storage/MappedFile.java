@@ -0,0 +1,99 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MappedFile maps the pages of a data file into memory, for DbFiles running
+ * in memory-mapped mode.
+ * <p>
+ * The file is mapped read-only in chunks of {@link #CHUNK_PAGES} pages, each
+ * chunk starting on a page boundary so that no page straddles two chunks.
+ * A chunk is mapped the first time one of its pages is read; when a page past
+ * the mapped end of its chunk is read (because pages were appended to the
+ * file since), that chunk is mapped again. Pages are still written through
+ * {@link FileChannelCache}; writes go through the OS page cache, so they are
+ * seen by the mapping.
+ *
+ * @Threadsafe
+ */
+public class MappedFile {
+
+    /**
+     * Number of pages mapped together.
+     */
+    public static final int CHUNK_PAGES = 1024;
+
+    private final File file;
+    private final long base;
+    private final int pageSize;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    /**
+     * @param file     the file to map
+     * @param base     offset in the file of the first page
+     * @param pageSize size of a page
+     */
+    public MappedFile(File file, long base, int pageSize) {
+        this.file = file;
+        this.base = base;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the page size this file was mapped with
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Return a read-only view of the page with the given index (counting from
+     * base), positioned at the start of the page and limited to its end.
+     *
+     * @return the page, or null if the file does not extend past that page
+     */
+    public ByteBuffer page(int index) throws IOException {
+        int c = index / CHUNK_PAGES;
+        int offset = (index % CHUNK_PAGES) * pageSize;
+        ByteBuffer chunk = chunk(c, offset + pageSize);
+        if (chunk == null)
+            return null;
+        ByteBuffer view = chunk.duplicate();
+        view.position(offset);
+        view.limit(offset + pageSize);
+        return view.slice();
+    }
+
+    /**
+     * Forget every mapping. They are unmapped once garbage collected.
+     */
+    public synchronized void clear() {
+        chunks.clear();
+    }
+
+    /**
+     * @return chunk c, mapped to at least minBytes, or null if the file is too short
+     */
+    private synchronized ByteBuffer chunk(int c, int minBytes) throws IOException {
+        while (chunks.size() <= c)
+            chunks.add(null);
+        MappedByteBuffer chunk = chunks.get(c);
+        if (chunk != null && chunk.capacity() >= minBytes)
+            return chunk;
+
+        FileChannel ch = FileChannelCache.getChannel(file);
+        long start = base + (long) c * CHUNK_PAGES * pageSize;
+        long pages = Math.min(CHUNK_PAGES, (ch.size() - start) / pageSize);
+        if (pages * pageSize < minBytes)
+            return null;
+        chunk = ch.map(FileChannel.MapMode.READ_ONLY, start, pages * pageSize);
+        chunks.set(c, chunk);
+        return chunk;
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Morsels splits the pages of a file into small ranges of consecutive pages
+ * ("morsels") and hands them out to the threads of a parallel scan. Threads
+ * take a new morsel whenever they are done with the previous one, so a slow
+ * thread simply ends up with fewer morsels.
+ * <p>
+ * The morsels cover the pages the file has when they are reset, which a
+ * parallel scan does when it is opened, so pages added after the plan was
+ * built, e.g. by an insert of the same transaction, are read too.
+ *
+ * @Threadsafe
+ * @see HeapFile#iterator(simpledb.transaction.TransactionId, simpledb.execution.Predicate, Morsels)
+ */
+public class Morsels {
+
+    /**
+     * Default number of pages in a morsel.
+     */
+    public static final int DEFAULT_MORSEL_PAGES = 16;
+
+    private final HeapFile file;
+    private volatile int numPages;
+    private final int morselPages;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param file        the file whose pages to hand out, starting at page 0
+     * @param morselPages the number of pages in a morsel
+     */
+    public Morsels(HeapFile file, int morselPages) {
+        if (morselPages <= 0)
+            throw new IllegalArgumentException("morsels must have at least one page");
+        this.file = file;
+        this.morselPages = morselPages;
+        this.numPages = file.numPages();
+    }
+
+    public Morsels(HeapFile file) {
+        this(file, DEFAULT_MORSEL_PAGES);
+    }
+
+    /**
+     * Take the next morsel.
+     *
+     * @return the first page of the morsel, or -1 if every morsel was taken
+     */
+    public int take() {
+        int start = next.getAndAdd(morselPages);
+        return start < numPages ? start : -1;
+    }
+
+    /**
+     * @return the page after the last page of the morsel starting at start
+     */
+    public int end(int start) {
+        return Math.min(start + morselPages, numPages);
+    }
+
+    public int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Hand out every morsel again, over the pages the file has now. Must
+     * not be called while a scan is taking morsels.
+     */
+    public void reset() {
+        numPages = file.numPages();
+        next.set(0);
+    }
+}
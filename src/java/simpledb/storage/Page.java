@@ -58,4 +58,18 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * @return the LSN of the last log record of a change to this page, or 0
+     * if it was not logged since it was read. The log must be on disk up to
+     * this record before the page is written.
+     *
+     * @see LogFile#flushTo
+     */
+    long getLSN();
+
+    /**
+     * Set the LSN of the last log record of a change to this page.
+     */
+    void setLSN(long lsn);
 }
@@ -0,0 +1,140 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The change an UPDATE log record makes to a page: the byte ranges that
+ * differ between two images of the page, with their bytes in both. Redo
+ * writes the after bytes of each range into the page, undo writes the before
+ * bytes back; neither needs the rest of the page, and both can be applied
+ * again to a page they were already applied to.
+ * <p>
+ * On disk a delta is the number of ranges, then the offset, the length, the
+ * before bytes and the after bytes of each range.
+ */
+class PageDelta {
+
+    // ranges closer than this are logged as one, as a range costs two ints
+    private static final int MIN_GAP = 8;
+
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int[] offsets, byte[][] before, byte[][] after) {
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the ranges where the after image differs from the before
+     * image; bytes past the end of the shorter image count as zeroes
+     */
+    static PageDelta diff(byte[] oldData, byte[] newData) {
+        int len = Math.max(oldData.length, newData.length);
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < len) {
+            if (byteAt(oldData, i) == byteAt(newData, i)) {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1, same = 0;
+            for (i = end; i < len && same < MIN_GAP; i++) {
+                if (byteAt(oldData, i) == byteAt(newData, i)) {
+                    same++;
+                } else {
+                    same = 0;
+                    end = i + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int start = ranges.get(r)[0], end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = slice(oldData, start, end);
+            after[r] = slice(newData, start, end);
+        }
+        return new PageDelta(offsets, before, after);
+    }
+
+    private static byte byteAt(byte[] data, int i) {
+        return i < data.length ? data[i] : 0;
+    }
+
+    private static byte[] slice(byte[] data, int start, int end) {
+        byte[] s = new byte[end - start];
+        if (start < data.length)
+            System.arraycopy(data, start, s, 0, Math.min(end, data.length) - start);
+        return s;
+    }
+
+    /**
+     * @return the number of changed ranges
+     */
+    int numRanges() {
+        return offsets.length;
+    }
+
+    /**
+     * Write the after bytes into the image of a page.
+     */
+    void redo(byte[] data) {
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(after[r], 0, data, offsets[r], after[r].length);
+    }
+
+    /**
+     * Write the before bytes back into the image of a page.
+     */
+    void undo(byte[] data) {
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(before[r], 0, data, offsets[r], before[r].length);
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(before[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    static PageDelta readFrom(DataInput in) throws IOException {
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            before[r] = new byte[len];
+            in.readFully(before[r]);
+            after[r] = new byte[len];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(offsets, before, after);
+    }
+
+    /**
+     * @return the number of bytes writeTo writes
+     */
+    int size() {
+        int size = 4;
+        for (byte[] b : before)
+            size += 8 + 2 * b.length;
+        return size;
+    }
+}
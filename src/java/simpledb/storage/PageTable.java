@@ -0,0 +1,362 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * PageTable holds the frames of the BufferPool and decides which frame to
+ * give up when the pool is full.
+ * <p>
+ * Lookups go through a {@link ConcurrentHashMap}, so a hit never takes a
+ * lock: it only sets the frame's reference bit. Misses and evictions are
+ * serialized by a single replacement lock, but the disk read of a missing
+ * page happens outside of that lock. While a page is being read its frame is
+ * pinned, and other threads asking for the same page wait on the frame
+ * instead of reading it a second time.
+ * <p>
+ * Replacement is a 2Q policy driven by CLOCK reference bits. New frames enter
+ * the cold queue; a frame that is referenced again while cold is promoted to
+ * the hot queue the next time the replacer passes over it. Pages touched only
+ * once (e.g. by a sequential scan) therefore never push the hot pages (e.g.
+ * B+ tree internal pages) out of the pool. Pinned frames and dirty frames are
+ * never chosen as victims, since SimpleDB runs in NO STEAL mode.
+ * <p>
+ * Pages can also be prefetched. A prefetched frame is not referenced until
+ * the page is asked for, and that first request counts as a hit but does not
+ * set the reference bit, so read-ahead does not make scanned pages look hot.
+ *
+ * @Threadsafe
+ */
+class PageTable {
+
+    /**
+     * A slot of the buffer pool. The page is null while it is being read.
+     */
+    static final class Frame {
+        final PageId pid;
+        private Page page;
+        private boolean loading;
+        final AtomicInteger pinCount = new AtomicInteger(0);
+        volatile boolean referenced;
+        boolean hot; // protected by PageTable.lock
+        // set while the page was prefetched and has not been asked for yet
+        final AtomicBoolean prefetched = new AtomicBoolean(false);
+
+        Frame(PageId pid) {
+            this.pid = pid;
+            this.loading = true;
+        }
+
+        Frame(Page page) {
+            this.pid = page.getId();
+            this.page = page;
+        }
+
+        synchronized Page getPage() {
+            while (loading) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return page;
+        }
+
+        synchronized Page peek() {
+            return page;
+        }
+
+        synchronized void setPage(Page page) {
+            this.page = page;
+            this.loading = false;
+            notifyAll();
+        }
+
+        boolean isEvictable() {
+            Page p = peek();
+            return pinCount.get() == 0 && p != null && p.isDirty() == null;
+        }
+    }
+
+    private final int capacity;
+    private final int hotTarget;
+    private final Map<PageId, Frame> frames;
+    private final ArrayDeque<Frame> cold = new ArrayDeque<>();
+    private final ArrayDeque<Frame> hot = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong prefetches = new AtomicLong(0);
+    private final AtomicLong prefetchesUsed = new AtomicLong(0);
+    private final AtomicLong prefetchesWasted = new AtomicLong(0);
+
+    /**
+     * @param capacity maximum number of frames held by this table
+     */
+    PageTable(int capacity) {
+        this.capacity = capacity;
+        // as in 2Q, keep about a quarter of the pool for pages seen only once
+        this.hotTarget = Math.max(1, capacity - capacity / 4);
+        this.frames = new ConcurrentHashMap<>(capacity * 2);
+    }
+
+    /**
+     * Return the page with the given id, reading it with loader on a miss.
+     * Evicts a page first if the table is full.
+     *
+     * @return the page, or null if loader returned null
+     * @throws DbException if every frame is pinned or dirty
+     */
+    Page getPage(PageId pid, Function<PageId, Page> loader) throws DbException {
+        while (true) {
+            Frame f = frames.get(pid);
+            if (f != null) {
+                Page p = f.getPage();
+                if (p != null) {
+                    if (f.prefetched.compareAndSet(true, false))
+                        prefetchesUsed.incrementAndGet();
+                    else
+                        f.referenced = true;
+                    hits.incrementAndGet();
+                    return p;
+                }
+                // the read of this frame failed, try again ourselves
+                frames.remove(pid, f);
+                continue;
+            }
+
+            Frame mine = new Frame(pid);
+            mine.pinCount.incrementAndGet();
+            lock.lock();
+            try {
+                if (frames.containsKey(pid))
+                    continue;
+                reserve();
+                frames.put(pid, mine);
+                cold.addLast(mine);
+            } finally {
+                lock.unlock();
+            }
+
+            misses.incrementAndGet();
+            return load(mine, loader);
+        }
+    }
+
+    /**
+     * Read the page with the given id into the table with loader, unless it
+     * is already there. Evicts a page first if the table is full.
+     *
+     * @return true if the page was read
+     * @throws DbException if every frame is pinned or dirty
+     */
+    boolean prefetch(PageId pid, Function<PageId, Page> loader) throws DbException {
+        if (frames.containsKey(pid))
+            return false;
+        Frame mine = new Frame(pid);
+        mine.pinCount.incrementAndGet();
+        mine.prefetched.set(true);
+        lock.lock();
+        try {
+            if (frames.containsKey(pid))
+                return false;
+            reserve();
+            frames.put(pid, mine);
+            cold.addLast(mine);
+        } finally {
+            lock.unlock();
+        }
+
+        prefetches.incrementAndGet();
+        return load(mine, loader) != null;
+    }
+
+    /**
+     * Place the given page in the table, replacing any cached version of it.
+     *
+     * @throws DbException if the page is new and every frame is pinned or dirty
+     */
+    void putPage(Page page) throws DbException {
+        lock.lock();
+        try {
+            Frame f = frames.get(page.getId());
+            if (f != null) {
+                f.setPage(page);
+                f.referenced = true;
+                return;
+            }
+            reserve();
+            f = new Frame(page);
+            frames.put(f.pid, f);
+            cold.addLast(f);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the cached page with the given id, or null if it is not cached.
+     * Does not count as a reference.
+     */
+    Page peekPage(PageId pid) {
+        Frame f = frames.get(pid);
+        return f == null ? null : f.peek();
+    }
+
+    /**
+     * @return a snapshot of all pages currently cached
+     */
+    List<Page> pages() {
+        List<Page> result = new ArrayList<>(frames.size());
+        for (Frame f : frames.values()) {
+            Page p = f.peek();
+            if (p != null)
+                result.add(p);
+        }
+        return result;
+    }
+
+    /**
+     * Remove the page with the given id from the table, without writing it.
+     */
+    void removePage(PageId pid) {
+        lock.lock();
+        try {
+            Frame f = frames.remove(pid);
+            if (f != null)
+                (f.hot ? hot : cold).remove(f);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    long getPrefetchCount() {
+        return prefetches.get();
+    }
+
+    long getPrefetchUsedCount() {
+        return prefetchesUsed.get();
+    }
+
+    long getPrefetchWastedCount() {
+        return prefetchesWasted.get();
+    }
+
+    /**
+     * Read the page of a frame reserved by the caller and unpin it.
+     */
+    private Page load(Frame f, Function<PageId, Page> loader) {
+        Page p = null;
+        try {
+            p = loader.apply(f.pid);
+        } finally {
+            if (p == null)
+                drop(f);
+            f.setPage(p);
+            f.pinCount.decrementAndGet();
+        }
+        return p;
+    }
+
+    private void drop(Frame f) {
+        lock.lock();
+        try {
+            if (frames.remove(f.pid, f))
+                (f.hot ? hot : cold).remove(f);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evict frames until there is room for one more. Caller holds lock.
+     */
+    private void reserve() throws DbException {
+        while (frames.size() >= capacity) {
+            Frame victim = chooseVictim();
+            if (victim == null)
+                throw new DbException("all pages in the buffer pool are dirty or pinned");
+            frames.remove(victim.pid, victim);
+            evictions.incrementAndGet();
+            if (victim.prefetched.get())
+                prefetchesWasted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Pick a victim and unlink it from its queue. Caller holds lock.
+     *
+     * @return the victim, or null if no frame can be evicted
+     */
+    private Frame chooseVictim() {
+        // age the hot queue down to its share of the pool
+        for (int n = 2 * hot.size(); n > 0 && hot.size() > hotTarget; n--) {
+            Frame f = hot.pollFirst();
+            if (f.referenced) {
+                f.referenced = false;
+                hot.addLast(f);
+            } else {
+                f.hot = false;
+                cold.addLast(f);
+            }
+        }
+
+        // then look for a cold frame that was not referenced again
+        for (int n = cold.size(); n > 0; n--) {
+            Frame f = cold.pollFirst();
+            if (f.referenced) {
+                f.referenced = false;
+                f.hot = true;
+                hot.addLast(f);
+            } else if (!f.isEvictable()) {
+                cold.addLast(f);
+            } else {
+                return f;
+            }
+        }
+
+        // everything cold is in use, run the clock over the hot queue
+        for (int n = 2 * hot.size(); n > 0; n--) {
+            Frame f = hot.pollFirst();
+            if (!f.isEvictable()) {
+                hot.addLast(f);
+            } else if (f.referenced) {
+                f.referenced = false;
+                hot.addLast(f);
+            } else {
+                return f;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,349 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+import simpledb.storage.PageId;
+
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager keeps the page-level shared/exclusive locks of running
+ * transactions for the BufferPool.
+ * <p>
+ * Each page has a set of holders and a FIFO queue of waiting requests.
+ * A request that cannot be granted waits on its own condition variable and
+ * is woken up only when a release may have made it grantable. Upgrades from
+ * shared to exclusive jump to the head of the queue.
+ * <p>
+ * Before a request starts waiting, the wait-for graph is checked for a cycle
+ * through the requesting transaction, and so is it after a grant to a
+ * transaction that still waits for another lock, as the queued requests of
+ * the page may now wait for it. These are the only times edges are added,
+ * so every cycle is found as it is closed, and nobody polls. If one is
+ * found, the youngest transaction in the cycle (the one with the largest
+ * id) is chosen as the victim and its pending request fails with a
+ * {@link TransactionAbortedException}. The victim still holds its locks until
+ * the caller aborts it through BufferPool.transactionComplete.
+ * <p>
+ * The threads of a parallel query share their transaction, so a transaction
+ * may have several requests waiting at once; the wait-for graph has the
+ * edges of all of them.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    private static class Request {
+        final TransactionId tid;
+        final PageId pid;
+        final boolean exclusive;
+        final Condition cond;
+        boolean granted;
+        boolean aborted;
+
+        Request(TransactionId tid, PageId pid, boolean exclusive, Condition cond) {
+            this.tid = tid;
+            this.pid = pid;
+            this.exclusive = exclusive;
+            this.cond = cond;
+        }
+    }
+
+    private static class LockState {
+        final Set<TransactionId> sharers = new HashSet<>();
+        TransactionId owner;
+        final LinkedList<Request> waiters = new LinkedList<>();
+
+        boolean isFree() {
+            return owner == null && sharers.isEmpty() && waiters.isEmpty();
+        }
+    }
+
+    private final ReentrantLock latch = new ReentrantLock();
+    private final Map<PageId, LockState> locks = new HashMap<>();
+    private final Map<TransactionId, Set<PageId>> held = new HashMap<>();
+    // the pending requests of each blocked transaction, one per waiting
+    // thread, used to walk the wait-for graph
+    private final Map<TransactionId, Set<Request>> waiting = new HashMap<>();
+
+    /**
+     * Acquire a lock on pid for tid, blocking until it is granted.
+     *
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if tid was chosen as a deadlock victim
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        latch.lock();
+        try {
+            LockState ls = locks.computeIfAbsent(pid, k -> new LockState());
+            if (holds(ls, tid, exclusive))
+                return;
+            // an upgrade goes ahead of the queue, so it need not be empty
+            boolean upgrade = exclusive && ls.sharers.contains(tid);
+            if ((ls.waiters.isEmpty() || upgrade) && compatible(ls, tid, exclusive)) {
+                grant(ls, pid, tid, exclusive);
+                return;
+            }
+
+            Request req = new Request(tid, pid, exclusive, latch.newCondition());
+            if (upgrade)
+                ls.waiters.addFirst(req);
+            else
+                ls.waiters.addLast(req);
+            waiting.computeIfAbsent(tid, k -> new HashSet<>()).add(req);
+            boolean interrupted = false;
+            try {
+                resolveDeadlock(tid);
+                while (!req.granted && !req.aborted) {
+                    try {
+                        req.cond.await();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                Set<Request> reqs = waiting.get(tid);
+                reqs.remove(req);
+                if (reqs.isEmpty())
+                    waiting.remove(tid);
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+                if (!req.granted) {
+                    ls.waiters.remove(req);
+                    wakeUp(pid, ls);
+                }
+            }
+            if (req.aborted)
+                throw new TransactionAbortedException();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Acquire a lock on pid for tid only if it can be granted right away,
+     * without waiting and without going ahead of a queued request.
+     *
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @return true if tid now holds the lock
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm) {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        latch.lock();
+        try {
+            LockState ls = locks.computeIfAbsent(pid, k -> new LockState());
+            if (holds(ls, tid, exclusive))
+                return true;
+            if (!ls.waiters.isEmpty() || !compatible(ls, tid, exclusive))
+                return false;
+            grant(ls, pid, tid, exclusive);
+            return true;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Release the lock tid holds on pid, if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            Set<PageId> pages = held.get(tid);
+            if (pages != null) {
+                pages.remove(pid);
+                if (pages.isEmpty())
+                    held.remove(tid);
+            }
+            LockState ls = locks.get(pid);
+            if (ls == null)
+                return;
+            ls.sharers.remove(tid);
+            if (tid.equals(ls.owner))
+                ls.owner = null;
+            wakeUp(pid, ls);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Release every lock held by tid.
+     */
+    public void releaseAll(TransactionId tid) {
+        latch.lock();
+        try {
+            Set<PageId> pages = held.remove(tid);
+            if (pages == null)
+                return;
+            for (PageId pid : pages) {
+                LockState ls = locks.get(pid);
+                if (ls == null)
+                    continue;
+                ls.sharers.remove(tid);
+                if (tid.equals(ls.owner))
+                    ls.owner = null;
+                wakeUp(pid, ls);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * @return true if tid holds a lock (shared or exclusive) on pid
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            LockState ls = locks.get(pid);
+            return ls != null && (tid.equals(ls.owner) || ls.sharers.contains(tid));
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * @return the pages on which tid holds a lock
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        latch.lock();
+        try {
+            Set<PageId> pages = held.get(tid);
+            return pages == null ? Collections.emptySet() : new HashSet<>(pages);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private static boolean holds(LockState ls, TransactionId tid, boolean exclusive) {
+        if (tid.equals(ls.owner))
+            return true;
+        return !exclusive && ls.sharers.contains(tid);
+    }
+
+    private static boolean compatible(LockState ls, TransactionId tid, boolean exclusive) {
+        if (ls.owner != null && !ls.owner.equals(tid))
+            return false;
+        if (!exclusive)
+            return true;
+        return ls.sharers.isEmpty() || (ls.sharers.size() == 1 && ls.sharers.contains(tid));
+    }
+
+    private void grant(LockState ls, PageId pid, TransactionId tid, boolean exclusive) {
+        if (exclusive) {
+            ls.sharers.remove(tid);
+            ls.owner = tid;
+        } else {
+            ls.sharers.add(tid);
+        }
+        held.computeIfAbsent(tid, k -> new HashSet<>()).add(pid);
+        if (!ls.waiters.isEmpty() && waiting.containsKey(tid))
+            resolveDeadlock(tid);
+    }
+
+    /**
+     * Grant queued requests in FIFO order for as long as they are compatible.
+     */
+    private void wakeUp(PageId pid, LockState ls) {
+        Iterator<Request> it = ls.waiters.iterator();
+        while (it.hasNext()) {
+            Request r = it.next();
+            if (r.aborted)
+                continue; // its thread takes it out of the queue
+            if (!compatible(ls, r.tid, r.exclusive))
+                break;
+            it.remove();
+            r.granted = true;
+            grant(ls, pid, r.tid, r.exclusive);
+            r.cond.signal();
+        }
+        if (ls.isFree())
+            locks.remove(pid);
+    }
+
+    /**
+     * @return the transactions a queued request waits for: the incompatible
+     * holders and the incompatible requests ahead of it in the queue
+     */
+    private List<TransactionId> waitsFor(LockState ls, Request req) {
+        List<TransactionId> result = new ArrayList<>();
+        if (ls.owner != null && !ls.owner.equals(req.tid))
+            result.add(ls.owner);
+        if (req.exclusive) {
+            for (TransactionId t : ls.sharers) {
+                if (!t.equals(req.tid))
+                    result.add(t);
+            }
+        }
+        for (Request r : ls.waiters) {
+            if (r == req)
+                break;
+            if (r.aborted)
+                continue;
+            if ((r.exclusive || req.exclusive) && !r.tid.equals(req.tid))
+                result.add(r.tid);
+        }
+        return result;
+    }
+
+    /**
+     * @return the requests of tid that are still waiting
+     */
+    private List<Request> pendingRequests(TransactionId tid) {
+        List<Request> result = new ArrayList<>();
+        Set<Request> reqs = waiting.get(tid);
+        if (reqs != null) {
+            for (Request r : reqs) {
+                if (!r.aborted && !r.granted)
+                    result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Break every cycle through start in the wait-for graph, by aborting the
+     * pending requests of the youngest transaction of each in turn. A new
+     * request can close several cycles at once, and none of them is looked
+     * for again later.
+     */
+    private void resolveDeadlock(TransactionId start) {
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(start, start, new ArrayList<>(), new HashSet<>())) != null) {
+            TransactionId victim = cycle.get(0);
+            for (TransactionId t : cycle) {
+                if (t.getId() > victim.getId())
+                    victim = t;
+            }
+            for (Request r : pendingRequests(victim)) {
+                r.aborted = true;
+                r.cond.signal();
+            }
+        }
+    }
+
+    private List<TransactionId> findCycle(TransactionId start, TransactionId cur,
+                                          List<TransactionId> path, Set<TransactionId> visited) {
+        List<Request> reqs = pendingRequests(cur);
+        if (reqs.isEmpty())
+            return null;
+        path.add(cur);
+        for (Request req : reqs) {
+            for (TransactionId next : waitsFor(locks.get(req.pid), req)) {
+                if (next.equals(start))
+                    return path;
+                if (visited.add(next)) {
+                    List<TransactionId> cycle = findCycle(start, next, path, visited);
+                    if (cycle != null)
+                        return cycle;
+                }
+            }
+        }
+        path.remove(path.size() - 1);
+        return null;
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
@@ -191,6 +192,76 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Building an Aggregate does not read its child; opening it does.
+   */
+  @Test public void lazy() throws Exception {
+    Aggregate op = new Aggregate(scan1, 1, 0,
+        Aggregator.Op.SUM);
+    assertTrue(scan1.hasNext());
+    op.open();
+    sum.open();
+    TestUtil.matchAllTuples(sum, op);
+    op.close();
+
+    // opening it again computes the aggregate again
+    op.open();
+    sum.rewind();
+    TestUtil.matchAllTuples(sum, op);
+  }
+
+  /**
+   * Over input sorted on the group-by field, groups are aggregated one at a
+   * time, with the same results.
+   */
+  @Test public void streaming() throws Exception {
+    Aggregate op = new Aggregate(scan1, 1, 0,
+        Aggregator.Op.AVG, true);
+    assertTrue(op.isStreaming());
+    op.open();
+    avg.open();
+    TestUtil.matchAllTuples(avg, op);
+    assertFalse(op.hasNext());
+
+    op.rewind();
+    avg.rewind();
+    TestUtil.matchAllTuples(avg, op);
+
+    op = new Aggregate(scan2, 1, 0, Aggregator.Op.COUNT, true);
+    op.open();
+    count.open();
+    TestUtil.matchAllTuples(count, op);
+  }
+
+  /**
+   * Several aggregates grouped by two fields, over input sorted on them, give
+   * the same results as over unsorted input.
+   */
+  @Test public void multipleStreaming() throws Exception {
+    int[] data = new int[] { 1, 1, 2,
+                             1, 1, 4,
+                             1, 2, 6,
+                             3, 1, 2,
+                             3, 1, 4,
+                             3, 2, 6,
+                             5, 1, 7 };
+    int[] expected = new int[] { 1, 1, 6, 2, 4,
+                                 1, 2, 6, 1, 6,
+                                 3, 1, 6, 2, 4,
+                                 3, 2, 6, 1, 6,
+                                 5, 1, 7, 1, 7 };
+    Aggregator.Op[] ops = new Aggregator.Op[] { Aggregator.Op.SUM,
+        Aggregator.Op.COUNT, Aggregator.Op.MAX };
+    for (boolean sorted : new boolean[] { false, true }) {
+      Aggregate op = new Aggregate(TestUtil.createTupleList(3, data),
+          new int[] { 0, 1 }, new int[] { 2, 2, 2 }, ops, sorted);
+      assertEquals(sorted, op.isStreaming());
+      assertEquals(5, op.getTupleDesc().numFields());
+      op.open();
+      TestUtil.matchAllTuples(TestUtil.createTupleList(5, expected), op);
+    }
+  }
+
   /**
    * JUnit suite target
    */
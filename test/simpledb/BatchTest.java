@@ -0,0 +1,203 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Checks that reading operators a batch at a time returns the same rows as
+ * reading them a tuple at a time.
+ */
+public class BatchTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private HeapFile hf1;
+    private HeapFile hf2;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf1 = SystemTestUtil.createRandomHeapFile(2, ROWS, 1000, null, null);
+        hf2 = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000, null, null);
+        tid = new TransactionId();
+    }
+
+    /**
+     * SeqScan fills whole batches, and the last one with what is left.
+     */
+    @Test public void seqScanBatches() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf1.getId(), "t");
+        scan.open();
+        int rows = 0;
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null) {
+            assertEquals(Math.min(TupleBatch.DEFAULT_CAPACITY, ROWS - rows), batch.numSelected());
+            assertNotNull(batch.getRecordId(batch.getSelected(0)));
+            rows += batch.numSelected();
+        }
+        scan.close();
+        assertEquals(ROWS, rows);
+
+        SystemTestUtil.matchTuples(new BatchToTupleAdapter(new SeqScan(tid, hf1.getId(), "t")),
+                TestUtil.collect(new SeqScan(tid, hf1.getId(), "t")));
+    }
+
+    /**
+     * A batch continues where next() stopped, and next() where the batch
+     * stopped, without skipping or repeating a row.
+     */
+    @Test public void seqScanMixed() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf1.getId(), "t");
+        List<List<Integer>> rows = new ArrayList<>();
+        scan.open();
+        for (int i = 0; i < 10; i++)
+            rows.add(SystemTestUtil.tupleToList(scan.next()));
+        TupleBatch batch = scan.nextBatch();
+        for (int i = 0; i < batch.numSelected(); i++)
+            rows.add(SystemTestUtil.tupleToList(batch.getTuple(batch.getSelected(i))));
+        while (scan.hasNext())
+            rows.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        assertEquals(TestUtil.collect(new SeqScan(tid, hf1.getId(), "t")), rows);
+    }
+
+    private OpIterator makeFilterProject() {
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(500));
+        Filter f = new Filter(p, new SeqScan(tid, hf1.getId(), "t"));
+        return new Project(Arrays.asList(1, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE}, f);
+    }
+
+    @Test public void filterProject() throws Exception {
+        List<List<Integer>> expected = TestUtil.collect(makeFilterProject());
+        Project batched = (Project) makeFilterProject();
+        SystemTestUtil.matchTuples(new BatchToTupleAdapter(batched), expected);
+    }
+
+    /**
+     * Filter also works a batch at a time over a child that does not.
+     */
+    @Test public void filterOverTuples() throws Exception {
+        OpIterator list = TestUtil.createTupleList(1, new int[]{1, 2, 3, 4, 5, 6});
+        Filter f = new Filter(new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(3)), list);
+        f.open();
+        TupleBatch batch = f.nextBatch();
+        assertEquals(3, batch.numSelected());
+        assertEquals(6, batch.size());
+        for (int i = 0; i < 3; i++) {
+            Tuple t = batch.getTuple(batch.getSelected(i));
+            assertEquals(new IntField(i + 1), t.getField(0));
+        }
+        assertNull(f.nextBatch());
+        f.close();
+    }
+
+    private OpIterator makeJoin() {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        return new HashEquiJoin(p, new SeqScan(tid, hf1.getId(), "a"), new SeqScan(tid, hf2.getId(), "b"));
+    }
+
+    @Test public void hashEquiJoin() throws Exception {
+        List<List<Integer>> expected = TestUtil.collect(makeJoin());
+        assertTrue(expected.size() > TupleBatch.DEFAULT_CAPACITY);
+        SystemTestUtil.matchTuples(new BatchToTupleAdapter((BatchOpIterator) makeJoin()), expected);
+    }
+
+    private HashEquiJoin makeSpillingJoin() {
+        HashEquiJoin j = (HashEquiJoin) makeJoin();
+        j.setMaxInMemoryTuples(100);
+        return j;
+    }
+
+    /**
+     * With room for only a few tuples of child1 in memory, the join spills
+     * partitions to disk and still returns the rows of a nested loops join,
+     * a tuple or a batch at a time, and again after a rewind.
+     */
+    @Test public void hashEquiJoinSpills() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        List<List<Integer>> expected = TestUtil.collect(new Join(p,
+                new SeqScan(tid, hf1.getId(), "a"), new SeqScan(tid, hf2.getId(), "b")));
+        SystemTestUtil.matchTuples(makeSpillingJoin(), expected);
+        SystemTestUtil.matchTuples(new BatchToTupleAdapter(makeSpillingJoin()), expected);
+
+        HashEquiJoin j = makeSpillingJoin();
+        j.open();
+        while (j.hasNext())
+            j.next();
+        j.rewind();
+        List<List<Integer>> again = TestUtil.drain(j);
+        j.close();
+        assertEquals(expected.size(), again.size());
+    }
+
+    private OpIterator makeAggregate() {
+        return new Aggregate(new SeqScan(tid, hf2.getId(), "t"), 2, 0, Aggregator.Op.SUM);
+    }
+
+    @Test public void aggregate() throws Exception {
+        List<List<Integer>> expected = TestUtil.collect(makeAggregate());
+        SystemTestUtil.matchTuples(new BatchToTupleAdapter((BatchOpIterator) makeAggregate()), expected);
+    }
+
+    /**
+     * Int columns are filled straight from the page, and a StringAggregator
+     * counts a batch the same as its tuples one at a time.
+     */
+    @Test public void stringAggregatorBatch() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+        TupleBatch batch = new TupleBatch(td, ROWS);
+        StringAggregator byTuple = new StringAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i % 7));
+            t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+            batch.add(t);
+            byTuple.mergeTupleIntoGroup(t);
+        }
+        assertTrue(batch.isIntColumn(0));
+        assertFalse(batch.isIntColumn(1));
+        assertEquals(3, batch.getIntColumn(0)[3]);
+        batch.filter(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(0)));
+        assertEquals(ROWS - (ROWS + 6) / 7, batch.numSelected());
+
+        StringAggregator byBatch = new StringAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+        byBatch.mergeBatchIntoGroup(batch);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : TestUtil.collect(byTuple.iterator()))
+            if (row.get(0) != 0)
+                expected.add(row);
+        SystemTestUtil.matchTuples(byBatch.iterator(), expected);
+
+        SeqScan scan = new SeqScan(tid, hf1.getId(), "t");
+        scan.open();
+        TupleBatch scanned = scan.nextBatch();
+        int row = scanned.getSelected(0);
+        assertTrue(scanned.isIntColumn(1));
+        assertEquals(((IntField) scanned.getTuple(row).getField(1)).getValue(), scanned.getIntColumn(1)[row]);
+        scan.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BatchTest.class);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolEvictionTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 8;
+
+    private HeapFile hf;
+    private TransactionId tid;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // 504 two-int tuples fit on a page, so this table has 20 pages
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        tid = new TransactionId();
+        bp = Database.resetBufferPool(BUFFER_PAGES);
+    }
+
+    private void touch(int pgNo) throws Exception {
+        bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Hits, misses and evictions are counted.
+     */
+    @Test public void counters() throws Exception {
+        touch(0);
+        touch(0);
+        assertEquals(1, bp.getMissCount());
+        assertEquals(1, bp.getHitCount());
+        for (int i = 1; i < BUFFER_PAGES + 2; i++)
+            touch(i);
+        assertEquals(BUFFER_PAGES + 2, bp.getMissCount());
+        assertEquals(2, bp.getEvictionCount());
+    }
+
+    /**
+     * A sequential scan of a table larger than the pool must not push out
+     * pages that were referenced more than once.
+     */
+    @Test public void scanResistance() throws Exception {
+        touch(0);
+        touch(1);
+        touch(0);
+        touch(1);
+        for (int i = 2; i < 20; i++)
+            touch(i);
+
+        long hits = bp.getHitCount();
+        touch(0);
+        touch(1);
+        assertEquals(hits + 2, bp.getHitCount());
+    }
+
+    /**
+     * Dirty pages are never evicted (NO STEAL).
+     */
+    @Test public void dirtyPagesStay() throws Exception {
+        for (int i = 0; i < BUFFER_PAGES - 1; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE).markDirty(true, tid);
+        for (int i = BUFFER_PAGES; i < 20; i++)
+            touch(i);
+
+        long misses = bp.getMissCount();
+        for (int i = 0; i < BUFFER_PAGES - 1; i++)
+            touch(i);
+        assertEquals(misses, bp.getMissCount());
+
+        bp.getPage(tid, new HeapPageId(hf.getId(), BUFFER_PAGES - 1), Permissions.READ_WRITE).markDirty(true, tid);
+        try {
+            touch(BUFFER_PAGES);
+            fail("expected DbException when every page is dirty");
+        } catch (DbException expected) {
+        }
+    }
+
+    private void awaitPrefetches(long n) throws InterruptedException {
+        for (int i = 0; i < 500 && bp.getPrefetchCount() < n; i++)
+            Thread.sleep(10);
+        assertEquals(n, bp.getPrefetchCount());
+    }
+
+    /**
+     * Prefetched pages are counted as used when asked for, and as wasted
+     * when evicted before that.
+     */
+    @Test public void prefetchUsedAndWasted() throws Exception {
+        bp.prefetchPage(new HeapPageId(hf.getId(), 0));
+        awaitPrefetches(1);
+        touch(0);
+        assertEquals(0, bp.getMissCount());
+        assertEquals(1, bp.getPrefetchUsedCount());
+
+        bp.prefetchPage(new HeapPageId(hf.getId(), 1));
+        awaitPrefetches(2);
+        for (int i = 2; i < BUFFER_PAGES + 2; i++)
+            touch(i);
+        assertEquals(1, bp.getPrefetchUsedCount());
+        assertEquals(1, bp.getPrefetchWastedCount());
+    }
+
+    /**
+     * A sequential scan reads every page once, either itself or through the
+     * prefetcher, and uses every page that was prefetched.
+     */
+    @Test public void scanPrefetches() throws Exception {
+        bp = Database.resetBufferPool(32);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 20, count);
+        assertEquals(20, bp.getMissCount() + bp.getPrefetchCount());
+        assertEquals(bp.getPrefetchCount(), bp.getPrefetchUsedCount());
+        assertEquals(0, bp.getPrefetchWastedCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolEvictionTest.class);
+    }
+}
@@ -0,0 +1,151 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Morsels;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class GatherTest extends SimpleDbTestBase {
+    // 504 two-int tuples fit on a page, so this table has 40 pages
+    private static final int ROWS = 504 * 40;
+    private static final int WORKERS = 4;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, 1000, null, null, "field");
+        Database.getCatalog().addTable(hf, "gather");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        LogicalPlan.setParallelScanThreshold(LogicalPlan.DEFAULT_PARALLEL_SCAN_PAGES);
+        LogicalPlan.setParallelism(Runtime.getRuntime().availableProcessors());
+    }
+
+    private Gather makeParallelScan(Predicate p) {
+        Morsels morsels = new Morsels(hf, 3);
+        OpIterator[] workers = new OpIterator[WORKERS];
+        for (int i = 0; i < WORKERS; i++) {
+            OpIterator w = new SeqScan(tid, hf.getId(), "t", morsels);
+            workers[i] = p == null ? w : new Filter(p, w);
+        }
+        return new Gather(workers, morsels);
+    }
+
+    /**
+     * The workers read every page once between them.
+     */
+    @Test public void scan() throws Exception {
+        List<List<Integer>> expected = TestUtil.collectSorted(new SeqScan(tid, hf.getId(), "t"));
+        assertEquals(ROWS, expected.size());
+        assertEquals(expected, TestUtil.collectSorted(makeParallelScan(null)));
+    }
+
+    /**
+     * Pages added to the table after the plan was built, here by an insert
+     * of the same transaction, are scanned too.
+     */
+    @Test public void scanAppendedPages() throws Exception {
+        Gather g = makeParallelScan(null);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{-1, -1}));
+        assertEquals(41, hf.numPages());
+        List<List<Integer>> result = TestUtil.collectSorted(g);
+        assertEquals(ROWS + 1, result.size());
+        assertEquals(Arrays.asList(-1, -1), result.get(0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Filters run in the workers, and a rewind scans the table again.
+     */
+    @Test public void filterAndRewind() throws Exception {
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(300));
+        List<List<Integer>> expected = TestUtil.collectSorted(new Filter(p, new SeqScan(tid, hf.getId(), "t")));
+
+        Gather g = makeParallelScan(p);
+        g.open();
+        for (int i = 0; i < 10; i++)
+            g.next();
+        g.rewind();
+        List<List<Integer>> result = TestUtil.sortByValues(TestUtil.drain(g));
+        g.close();
+        assertEquals(expected, result);
+    }
+
+    /**
+     * Closing the Gather before the end stops the workers.
+     */
+    @Test public void closeEarly() throws Exception {
+        Gather g = makeParallelScan(null);
+        g.open();
+        g.next();
+        g.close();
+        assertEquals(ROWS, TestUtil.collectSorted(makeParallelScan(null)).size());
+    }
+
+    /**
+     * An Aggregate over a Gather aggregates each part of the table in its
+     * own thread, and merges the results.
+     */
+    @Test public void parallelAggregate() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT,
+                Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX}) {
+            Aggregate serial = new Aggregate(new SeqScan(tid, hf.getId(), "t"), 1, 0, op);
+            Aggregate parallel = new Aggregate(makeParallelScan(null), 1, 0, op);
+            assertEquals(TestUtil.collectSorted(serial), TestUtil.collectSorted(parallel));
+
+            serial = new Aggregate(new SeqScan(tid, hf.getId(), "t"), 1, Aggregator.NO_GROUPING, op);
+            parallel = new Aggregate(makeParallelScan(null), 1, Aggregator.NO_GROUPING, op);
+            assertEquals(TestUtil.collectSorted(serial), TestUtil.collectSorted(parallel));
+        }
+    }
+
+    /**
+     * Tables at least as large as the threshold are planned as a parallel
+     * scan.
+     */
+    @Test public void planned() throws Exception {
+        LogicalPlan.setParallelScanThreshold(hf.numPages());
+        LogicalPlan.setParallelism(WORKERS);
+        Parser parser = new Parser();
+        LogicalPlan lp = parser.generateLogicalPlan(tid, "SELECT * FROM gather g;");
+        Operator plan = (Operator) lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(plan.getChildren()[0] instanceof Gather);
+        assertEquals(TestUtil.collectSorted(new SeqScan(tid, hf.getId(), "g")), TestUtil.collectSorted(plan));
+
+        LogicalPlan.setParallelScanThreshold(hf.numPages() + 1);
+        plan = (Operator) parser.generateLogicalPlan(tid, "SELECT * FROM gather g;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(plan.getChildren()[0] instanceof SeqScan);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GatherTest.class);
+    }
+}
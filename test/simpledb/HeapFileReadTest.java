@@ -81,6 +81,31 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(1));
+        assertFalse(page.isSlotUsed(20));
+
+        // a page appended after the file was mapped is seen by the mapping
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        hf.writePage(new HeapPage(next, HeapPage.createEmptyPageData()));
+        assertEquals(504, ((HeapPage) hf.readPage(next)).getNumEmptySlots());
+
+        try {
+            hf.readPage(new HeapPageId(hf.getId(), 2));
+            fail("expected exception");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
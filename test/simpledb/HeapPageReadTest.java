@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -13,6 +14,7 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -123,6 +125,40 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.filter() and HeapPage.iterator(Predicate)
+     */
+    @Test public void testFilter() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30000));
+
+        int expected = 0;
+        for (int i = 0; i < EXAMPLE_VALUES.length; i++) {
+            boolean match = EXAMPLE_VALUES[i][0] > 30000;
+            assertEquals(match, page.filter(i, p));
+            if (match)
+                expected++;
+        }
+        // empty slots never match, even though their bytes are zero
+        assertFalse(page.filter(30, new Predicate(0, Predicate.Op.EQUALS, new IntField(0))));
+
+        int count = 0;
+        Iterator<Tuple> it = page.iterator(p);
+        while (it.hasNext()) {
+            assertTrue(((IntField) it.next().getField(0)).getValue() > 30000);
+            count++;
+        }
+        assertEquals(expected, count);
+    }
+
+    /**
+     * getPageData returns the bytes the page was read from.
+     */
+    @Test public void getPageData() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertArrayEquals(Arrays.copyOf(EXAMPLE_DATA, BufferPool.getPageSize()), page.getPageData());
+    }
+
     /**
      * JUnit suite target
      */
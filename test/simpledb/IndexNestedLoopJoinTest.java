@@ -0,0 +1,84 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    private HeapFile outer;
+    private BTreeFile inner;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        outer = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, null);
+        inner = BTreeUtility.createRandomBTreeFile(3, 2000, 100, null, null, 1);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Looking up the outer tuples, over several batches, gives the same
+     * tuples as a nested loops join, and a rewind returns them again.
+     */
+    @Test public void sameAsJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        List<List<Integer>> expected = TestUtil.collectSorted(new Join(p,
+                new SeqScan(tid, outer.getId(), "a"), new SeqScan(tid, inner.getId(), "b")));
+        assertFalse(expected.isEmpty());
+
+        IndexNestedLoopJoin j = new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "a"),
+                tid, inner.getId(), "b");
+        assertEquals(new SeqScan(tid, inner.getId(), "b").getTupleDesc().getFieldName(1), j.getJoinField2Name());
+        assertEquals(expected, TestUtil.collectSorted(j));
+
+        j.open();
+        while (j.hasNext())
+            j.next();
+        j.rewind();
+        int count = 0;
+        while (j.hasNext()) {
+            j.next();
+            count++;
+        }
+        j.close();
+        assertEquals(expected.size(), count);
+    }
+
+    /**
+     * The table must be keyed on the join field.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void notKeyField() {
+        new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, outer.getId(), "a"), tid, inner.getId(), "b");
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
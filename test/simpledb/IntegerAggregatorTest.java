@@ -1,8 +1,12 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Random;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -13,6 +17,7 @@ import simpledb.common.Type;
 import simpledb.execution.Aggregator;
 import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class IntegerAggregatorTest extends SimpleDbTestBase {
@@ -130,6 +135,65 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator.merge(): aggregating two halves of scan1 and
+   * merging them gives the same averages as aggregating all of scan1
+   */
+  @Test public void mergePartials() throws Exception {
+    scan1.open();
+    IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator second = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    for (int i = 0; i < 4; i++)
+      first.mergeTupleIntoGroup(scan1.next());
+    while (scan1.hasNext())
+      second.mergeTupleIntoGroup(scan1.next());
+
+    first.merge(second);
+    OpIterator it = first.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
+  /**
+   * Groups past the memory budget are written to disk, and every group is
+   * still returned once with its right value, also after a merge.
+   */
+  @Test public void spillGroups() throws Exception {
+    Random rand = new Random(42);
+    int[] values = new int[2 * 5000];
+    for (int i = 0; i < values.length; i += 2) {
+      values[i] = rand.nextInt(1000);
+      values[i + 1] = rand.nextInt(100) - 50;
+    }
+    OpIterator scan = TestUtil.createTupleList(width1, values);
+
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.MIN }) {
+      IntegerAggregator inMemory = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      IntegerAggregator second = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      first.setMaxGroups(10);
+      second.setMaxGroups(10);
+      scan.open();
+      for (int i = 0; scan.hasNext(); i++) {
+        Tuple t = scan.next();
+        inMemory.mergeTupleIntoGroup(t);
+        (i % 2 == 0 ? first : second).mergeTupleIntoGroup(t);
+      }
+      scan.close();
+      assertFalse(inMemory.hasSpilled());
+      assertTrue(first.hasSpilled());
+
+      List<List<Integer>> expected = TestUtil.collectSorted(inMemory.iterator());
+      first.merge(second);
+      assertEquals(expected, TestUtil.collectSorted(first.iterator()));
+      // reading the groups again aggregates the partitions again
+      assertEquals(expected, TestUtil.collectSorted(first.iterator()));
+      first.close();
+      second.close();
+      assertFalse(first.hasSpilled());
+    }
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
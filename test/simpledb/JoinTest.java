@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
@@ -8,14 +9,29 @@ import junit.framework.JUnit4TestAdapter;
 import org.junit.Before;
 import org.junit.Test;
 
+import simpledb.common.Database;
 import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.HashSemiJoin;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.execution.RuntimeFilter;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.List;
 
 public class JoinTest extends SimpleDbTestBase {
 
@@ -112,6 +128,136 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * HashEquiJoin returns every pair of matching tuples, for int keys with
+   * duplicates on both sides and for string keys, like a nested loops join.
+   */
+  @Test public void hashJoinKeys() throws Exception {
+    int[] left = new int[] { 1, 10, 2, 20, 1, 11, 3, 30, 1, 12 };
+    int[] right = new int[] { 1, 100, 4, 400, 1, 101, 2, 200 };
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    OpIterator expected = new Join(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(2, right));
+    HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(2, right));
+    expected.open();
+    op.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.matchAllTuples(expected, op);
+
+    Object[] sleft = new Object[] { "a", 1, "b", 2, "a", 3 };
+    Object[] sright = new Object[] { "a", 4, "c", 5, "b", 6 };
+    expected = new Join(pred, TestUtil.createTupleList(2, sleft),
+        TestUtil.createTupleList(2, sright));
+    op = new HashEquiJoin(pred, TestUtil.createTupleList(2, sleft),
+        TestUtil.createTupleList(2, sright));
+    expected.open();
+    op.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * A runtime filter accepts every key, and rejects values outside of the
+   * bounds of the keys.
+   */
+  @Test public void runtimeFilter() {
+    RuntimeFilter f = new RuntimeFilter(0, true, 100);
+    for (int i = 0; i < 100; i++)
+      f.add(new IntField(i * 7 + 50));
+    for (int i = 0; i < 100; i++)
+      assertTrue(f.mightContain(new IntField(i * 7 + 50)));
+    assertFalse(f.mightContain(49));
+    assertFalse(f.mightContain(50 + 99 * 7 + 1));
+    assertEquals(new IntField(50), f.getMin());
+    assertEquals(new IntField(50 + 99 * 7), f.getMax());
+    int accepted = 0;
+    for (int v = 50; v < 50 + 99 * 7; v++)
+      if (v % 7 != 1 && f.mightContain(v))
+        accepted++;
+    assertTrue(accepted < 50);
+  }
+
+  /**
+   * Pushing the keys of child1 down to the scan of child2, through a
+   * Filter, to a heap file or to a B+ tree, gives the same tuples, also
+   * when child1 does not fit in memory and after a rewind.
+   */
+  @Test public void hashJoinRuntimeFilter() throws Exception {
+    TransactionId tid = new TransactionId();
+    HeapFile small = SystemTestUtil.createRandomHeapFile(2, 50, 2000, null, null);
+    HeapFile large = SystemTestUtil.createRandomHeapFile(2, 3000, 2000, null, null);
+    BTreeFile tree = BTreeUtility.createRandomBTreeFile(2, 3000, 2000, null, null, 0);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Predicate half = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1000));
+
+    for (int maxInMemory : new int[] { HashEquiJoin.MAP_SIZE, 10 }) {
+      OpIterator expected = new Join(pred, new SeqScan(tid, small.getId(), "s"),
+          new Filter(half, new SeqScan(tid, large.getId(), "l")));
+      HashEquiJoin op = new HashEquiJoin(pred, new SeqScan(tid, small.getId(), "s"),
+          new Filter(half, new SeqScan(tid, large.getId(), "l")));
+      op.setMaxInMemoryTuples(maxInMemory);
+      expected.open();
+      op.open();
+      List<List<Integer>> result = TestUtil.sortByValues(TestUtil.drain(expected));
+      assertFalse(result.isEmpty());
+      assertEquals(result, TestUtil.sortByValues(TestUtil.drain(op)));
+      op.rewind();
+      assertEquals(result, TestUtil.sortByValues(TestUtil.drain(op)));
+      op.close();
+      expected.close();
+
+      expected = new Join(pred, new SeqScan(tid, small.getId(), "s"),
+          new SeqScan(tid, tree.getId(), "t"));
+      op = new HashEquiJoin(pred, new SeqScan(tid, small.getId(), "s"),
+          new BTreeScan(tid, tree.getId(), "t", null));
+      op.setMaxInMemoryTuples(maxInMemory);
+      expected.open();
+      op.open();
+      result = TestUtil.sortByValues(TestUtil.drain(expected));
+      assertFalse(result.isEmpty());
+      assertEquals(result, TestUtil.sortByValues(TestUtil.drain(op)));
+      op.close();
+      expected.close();
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A semi-join returns each tuple of child1 with a match once, and an
+   * anti-join those without one, with only the fields of child1.
+   */
+  @Test public void semiJoin() throws Exception {
+    int[] left = new int[] { 1, 10, 2, 20, 1, 11, 3, 30 };
+    int[] right = new int[] { 1, 100, 4, 400, 1, 101, 2, 200 };
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashSemiJoin op = new HashSemiJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(2, right), false);
+    assertEquals(2, op.getTupleDesc().numFields());
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2,
+        new int[] { 1, 10, 2, 20, 1, 11 }), op);
+    op.rewind();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2,
+        new int[] { 1, 10, 2, 20, 1, 11 }), op);
+    op.close();
+
+    op = new HashSemiJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(2, right), true);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[] { 3, 30 }), op);
+    op.close();
+
+    Object[] sleft = new Object[] { "a", 1, "b", 2, "a", 3 };
+    Object[] sright = new Object[] { "a", 4, "c", 5, "a", 6 };
+    op = new HashSemiJoin(pred, TestUtil.createTupleList(2, sleft),
+        TestUtil.createTupleList(2, sright), true);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, new Object[] { "b", 2 }), op);
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
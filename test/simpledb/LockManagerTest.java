@@ -0,0 +1,233 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Shared and exclusive page locks, and deadlock detection, also when several
+ * threads of the same transaction wait for locks at once, as the workers of
+ * a parallel query do.
+ */
+public class LockManagerTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private LockManager lm;
+    private PageId p1, p2, p3;
+    private TransactionId t1, t2, t3;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p1 = new HeapPageId(1, 1);
+        p2 = new HeapPageId(1, 2);
+        p3 = new HeapPageId(1, 3);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    /**
+     * A thread that acquires a lock, and keeps the outcome.
+     */
+    private class Acquirer extends Thread {
+        private final TransactionId tid;
+        private final PageId pid;
+        private final Permissions perm;
+        final AtomicReference<Object> outcome = new AtomicReference<>();
+
+        Acquirer(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+        }
+
+        Acquirer(TransactionId tid, PageId pid) {
+            this(tid, pid, Permissions.READ_WRITE);
+        }
+
+        @Override
+        public void run() {
+            try {
+                lm.acquire(tid, pid, perm);
+                outcome.set(Boolean.TRUE);
+            } catch (TransactionAbortedException e) {
+                outcome.set(e);
+            }
+        }
+    }
+
+    private Acquirer startBlocked(TransactionId tid, PageId pid) throws InterruptedException {
+        return startBlocked(tid, pid, Permissions.READ_WRITE);
+    }
+
+    private Acquirer startBlocked(TransactionId tid, PageId pid, Permissions perm) throws InterruptedException {
+        Acquirer a = new Acquirer(tid, pid, perm);
+        a.start();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (a.getState() != Thread.State.WAITING) {
+            assertTrue("acquire did not block", System.currentTimeMillis() < deadline);
+            assertNull("acquire did not block", a.outcome.get());
+            Thread.sleep(5);
+        }
+        return a;
+    }
+
+    private static void assertFinished(Acquirer a, boolean granted) throws InterruptedException {
+        a.join(TIMEOUT);
+        assertFalse("acquire still blocked", a.isAlive());
+        if (granted)
+            assertEquals(Boolean.TRUE, a.outcome.get());
+        else
+            assertTrue(a.outcome.get() instanceof TransactionAbortedException);
+    }
+
+    /**
+     * Shared locks are granted together; an exclusive request waits until
+     * every sharer has released the page.
+     */
+    @Test public void sharedAndExclusive() throws Exception {
+        lm.acquire(t1, p1, Permissions.READ_ONLY);
+        lm.acquire(t2, p1, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(t1, p1));
+        assertTrue(lm.holdsLock(t2, p1));
+        Acquirer writer = startBlocked(t3, p1);
+
+        lm.releaseAll(t1);
+        assertTrue(writer.isAlive());
+        lm.releaseAll(t2);
+        assertFinished(writer, true);
+        assertFalse(lm.holdsLock(t1, p1));
+    }
+
+    /**
+     * A cycle is found when the request that closes it is queued, and the
+     * youngest transaction is aborted even when it is the one already
+     * waiting; the other request is granted once the victim releases.
+     */
+    @Test public void deadlockAbortsWaitingVictim() throws Exception {
+        lm.acquire(t2, p1, Permissions.READ_WRITE);
+        lm.acquire(t1, p2, Permissions.READ_WRITE);
+        Acquirer victim = startBlocked(t2, p2);
+        Acquirer survivor = new Acquirer(t1, p1);
+        survivor.start();
+        assertFinished(victim, false);
+
+        lm.releaseAll(t2);
+        assertFinished(survivor, true);
+    }
+
+    /**
+     * Two sharers that both upgrade wait for each other; the younger one is
+     * aborted and the older one gets the exclusive lock.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        lm.acquire(t1, p1, Permissions.READ_ONLY);
+        lm.acquire(t2, p1, Permissions.READ_ONLY);
+        Acquirer older = startBlocked(t1, p1, Permissions.READ_WRITE);
+        Acquirer younger = new Acquirer(t2, p1, Permissions.READ_WRITE);
+        younger.start();
+        assertFinished(younger, false);
+
+        lm.releaseAll(t2);
+        assertFinished(older, true);
+    }
+
+    /**
+     * A request that closes two cycles at once breaks both of them, without
+     * waiting for a later look at the graph.
+     */
+    @Test public void requestClosesTwoCycles() throws Exception {
+        lm.acquire(t1, p1, Permissions.READ_WRITE);
+        lm.acquire(t1, p2, Permissions.READ_WRITE);
+        lm.acquire(t2, p3, Permissions.READ_ONLY);
+        lm.acquire(t3, p3, Permissions.READ_ONLY);
+        Acquirer a2 = startBlocked(t2, p1);
+        Acquirer a3 = startBlocked(t3, p2);
+        Acquirer closing = new Acquirer(t1, p3);
+        closing.start();
+        assertFinished(a2, false);
+        assertFinished(a3, false);
+
+        lm.releaseAll(t2);
+        lm.releaseAll(t3);
+        assertFinished(closing, true);
+    }
+
+    /**
+     * The only sharer of a page upgrades right away, even while another
+     * request is queued for the page.
+     */
+    @Test public void upgradeAheadOfQueue() throws Exception {
+        lm.acquire(t1, p1, Permissions.READ_ONLY);
+        Acquirer writer = startBlocked(t2, p1);
+        Acquirer upgrade = new Acquirer(t1, p1);
+        upgrade.start();
+        assertFinished(upgrade, true);
+
+        lm.releaseAll(t1);
+        assertFinished(writer, true);
+    }
+
+    /**
+     * A second waiting thread of t1 does not hide the wait of the first:
+     * the cycle t2 -> t1 -> t2 through the first thread is found.
+     */
+    @Test public void secondWaitKeepsFirstEdge() throws Exception {
+        lm.acquire(t1, p1, Permissions.READ_WRITE);
+        lm.acquire(t2, p2, Permissions.READ_WRITE);
+        lm.acquire(t3, p3, Permissions.READ_WRITE);
+        Acquirer first = startBlocked(t1, p2);
+        Acquirer second = startBlocked(t1, p3);
+
+        // t2 is the youngest in the cycle, so it is the victim
+        Acquirer closing = new Acquirer(t2, p1);
+        closing.start();
+        assertFinished(closing, false);
+
+        lm.releaseAll(t2);
+        assertFinished(first, true);
+        lm.releaseAll(t3);
+        assertFinished(second, true);
+    }
+
+    /**
+     * When one thread of t1 gets its lock, the request of the other thread
+     * still counts in the wait-for graph.
+     */
+    @Test public void grantKeepsOtherEdge() throws Exception {
+        lm.acquire(t1, p1, Permissions.READ_WRITE);
+        lm.acquire(t2, p2, Permissions.READ_WRITE);
+        lm.acquire(t3, p3, Permissions.READ_WRITE);
+        Acquirer first = startBlocked(t1, p2);
+        Acquirer second = startBlocked(t1, p3);
+        lm.releaseAll(t3);
+        assertFinished(second, true);
+
+        Acquirer closing = new Acquirer(t2, p1);
+        closing.start();
+        assertFinished(closing, false);
+
+        lm.releaseAll(t2);
+        assertFinished(first, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
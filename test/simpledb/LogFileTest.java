@@ -0,0 +1,281 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private File file;
+    private LogFile log;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("logtest", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    /**
+     * Commits that wait for the log at the same time share a force.
+     */
+    @Test public void groupCommit() throws Exception {
+        final int threads = 16;
+        // hold the flusher until every commit is queued: the delay is far
+        // longer than the test, and only a full batch releases it
+        log.setGroupCommit(60000000, threads);
+        long start = log.getForceCount();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        List<Thread> committers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    log.logCommit(tid);
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            });
+            committers.add(t);
+            t.start();
+        }
+        for (Thread t : committers)
+            t.join();
+        assertNull(error.get());
+        assertEquals(threads * 2, log.getTotalRecords());
+        assertEquals(start + 1, log.getForceCount());
+
+        // a single commit does not wait for a full batch longer than the
+        // delay
+        log.setGroupCommit(0, threads);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long forces = log.getForceCount();
+        log.logCommit(tid);
+        assertEquals(forces + 1, log.getForceCount());
+    }
+
+    /**
+     * Records are buffered until the log is flushed up to the LSN of a
+     * page, and LSNs grow with each record.
+     */
+    @Test public void flushToPageLSN() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Page page = hf.readPage(new HeapPageId(hf.getId(), 0));
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, page.getBeforeImage(), page);
+        long lsn = page.getLSN();
+        assertTrue(lsn > 0);
+        assertTrue(log.getDurableLSN() <= lsn);
+        // only the header was written to the file so far
+        assertEquals(8, file.length());
+
+        log.flushTo(lsn);
+        assertTrue(log.getDurableLSN() > lsn);
+        assertTrue(file.length() >= log.getDurableLSN());
+        long forces = log.getForceCount();
+        log.flushTo(lsn);
+        assertEquals(forces, log.getForceCount());
+
+        log.logWrite(tid, page.getBeforeImage(), page);
+        assertTrue(page.getLSN() > lsn);
+    }
+
+    /**
+     * An UPDATE record only holds the bytes that changed: inserting a tuple
+     * logs a small fraction of a page.
+     */
+    @Test public void deltaUpdate() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        Page before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(new int[]{1, 2}));
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.force();
+        long start = file.length();
+        log.logWrite(tid, before, page);
+        log.force();
+        assertTrue(file.length() - start < BufferPool.getPageSize() / 32);
+    }
+
+    /**
+     * A checkpoint records the dirty pages without writing them; the buffer
+     * pool then writes them in the background, but only once the
+     * transaction that dirtied them has committed.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        int emptySlots = ((HeapPage) hf.readPage(pid)).getNumEmptySlots();
+        BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+        assertTrue(bp.getDirtyPageTable().containsKey(pid));
+
+        Database.getLogFile().logCheckpoint();
+        bp.writeInBackground(Collections.singleton(pid)).get();
+        assertTrue(bp.getDirtyPageTable().containsKey(pid));
+        assertEquals(emptySlots, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        t.commit();
+        // the commit only logged the page, and left it to the writer
+        bp.writeInBackground(Collections.singleton(pid)).get();
+        assertFalse(bp.getDirtyPageTable().containsKey(pid));
+        assertEquals(emptySlots - 1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * A transaction that aborts after changing a committed page that is not
+     * written yet goes back to the committed version, which is still
+     * written later.
+     */
+    @Test public void abortKeepsCommittedPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        int emptySlots = ((HeapPage) hf.readPage(pid)).getNumEmptySlots();
+        BufferPool bp = Database.getBufferPool();
+        Transaction t1 = new Transaction();
+        t1.start();
+        bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bp.insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(new int[]{3, 4}));
+        t2.abort();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        HeapPage cached = (HeapPage) bp.getPage(t3.getId(), pid, Permissions.READ_ONLY);
+        assertEquals(emptySlots - 1, cached.getNumEmptySlots());
+        t3.commit();
+        bp.writeInBackground(Collections.singleton(pid)).get();
+        assertEquals(emptySlots - 1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Committed pages that are not written yet do not fill up the pool: they
+     * are written to make room.
+     */
+    @Test public void committedPagesMakeRoom() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1024, null, null);
+        BufferPool bp = Database.resetBufferPool(1);
+        Transaction t1 = new Transaction();
+        t1.start();
+        bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < hf.numPages(); i++)
+            bp.getPage(t2.getId(), new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        t2.commit();
+    }
+
+    /**
+     * A transaction that aborts after a checkpoint and its background
+     * writes leaves neither the disk nor the buffer pool with its changes.
+     */
+    @Test public void abortAfterBackgroundWrite() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        int emptySlots = ((HeapPage) hf.readPage(pid)).getNumEmptySlots();
+        BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+
+        Database.getLogFile().logCheckpoint();
+        bp.writeInBackground(Collections.singleton(pid)).get();
+        t.abort();
+        assertEquals(emptySlots, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        HeapPage cached = (HeapPage) bp.getPage(t2.getId(), pid, Permissions.READ_ONLY);
+        assertEquals(emptySlots, cached.getNumEmptySlots());
+        t2.commit();
+    }
+
+    /**
+     * Recovery redoes the committed changes of every page, including pages
+     * that were never written, and undoes the changes of transactions that
+     * did not finish, even those already written to disk.
+     */
+    @Test public void recoverPages() throws Exception {
+        final int pages = 16;
+        File dbFile = File.createTempFile("logtest", ".dat");
+        dbFile.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(dbFile.getAbsolutePath(), 2);
+        TransactionId winner = new TransactionId();
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(winner);
+        log.logXactionBegin(loser);
+        for (int i = 0; i < pages; i++) {
+            HeapPage page = new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData());
+            Page before = page.getBeforeImage();
+            page.insertTuple(Utility.getHeapTuple(new int[]{i, i}));
+            if (i % 2 == 0) {
+                log.logWrite(winner, before, page);
+            } else {
+                log.logWrite(loser, before, page);
+                log.flushTo(page.getLSN());
+                hf.writePage(page);
+            }
+        }
+        log.logCommit(winner);
+
+        // crash: the committed pages were never written
+        LogFile recovered = new LogFile(file);
+        recovered.recover();
+        for (int i = 0; i < pages; i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            int tuples = 0;
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next())
+                tuples++;
+            assertEquals("page " + i, i % 2 == 0 ? 1 : 0, tuples);
+        }
+        // the loser is aborted, and the log can be appended to
+        assertEquals(1, recovered.getTotalRecords());
+        TransactionId tid = new TransactionId();
+        recovered.logXactionBegin(tid);
+        recovered.logCommit(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+
+    private HeapFile hf;
+    private TransactionId tid;
+    private List<List<Integer>> expected;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(3, ROWS, 50, null, null);
+        tid = new TransactionId();
+
+        // ORDER BY field0 ASC, field1 DESC; sort is stable, so ties on both
+        // keys stay in scan order
+        expected = TestUtil.collect(new SeqScan(tid, hf.getId(), "t"));
+        expected.sort((a, b) -> {
+            int c = Integer.compare(a.get(0), b.get(0));
+            return c != 0 ? c : Integer.compare(b.get(1), a.get(1));
+        });
+    }
+
+    private OrderBy makeOrderBy(int maxInMemory) {
+        OrderBy o = new OrderBy(new int[]{0, 1}, new boolean[]{true, false},
+                new SeqScan(tid, hf.getId(), "t"));
+        o.setMaxInMemoryTuples(maxInMemory);
+        return o;
+    }
+
+    /**
+     * Sorting in memory on two fields, one ascending and one descending.
+     */
+    @Test public void inMemory() throws Exception {
+        assertEquals(expected, TestUtil.collect(makeOrderBy(ROWS)));
+    }
+
+    /**
+     * Sorting in runs of 500 tuples, merged in one pass.
+     */
+    @Test public void externalMerge() throws Exception {
+        assertEquals(expected, TestUtil.collect(makeOrderBy(500)));
+    }
+
+    /**
+     * Sorting in runs of 40 tuples: there are more runs than
+     * OrderBy.MAX_MERGE_WIDTH, so they are merged in two passes.
+     */
+    @Test public void multiPassMerge() throws Exception {
+        assertTrue(ROWS / 40 > OrderBy.MAX_MERGE_WIDTH);
+        assertEquals(expected, TestUtil.collect(makeOrderBy(40)));
+    }
+
+    /**
+     * Rewinding an external sort merges the runs again.
+     */
+    @Test public void rewind() throws Exception {
+        OrderBy o = makeOrderBy(500);
+        o.open();
+        for (int i = 0; i < 100; i++)
+            o.next();
+        o.rewind();
+        List<List<Integer>> result = TestUtil.drain(o);
+        o.close();
+        assertEquals(expected, result);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
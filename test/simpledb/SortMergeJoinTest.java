@@ -0,0 +1,93 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private HeapFile hf1, hf2;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf1 = SystemTestUtil.createRandomHeapFile(2, 300, 40, null, null);
+        hf2 = SystemTestUtil.createRandomHeapFile(3, 200, 40, null, null);
+        tid = new TransactionId();
+    }
+
+    private SeqScan scan1() {
+        return new SeqScan(tid, hf1.getId(), "a");
+    }
+
+    private SeqScan scan2() {
+        return new SeqScan(tid, hf2.getId(), "b");
+    }
+
+    /**
+     * Every supported predicate gives the same tuples as a nested loops
+     * join.
+     */
+    @Test public void predicates() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ}) {
+            JoinPredicate p = new JoinPredicate(0, op, 1);
+            List<List<Integer>> expected = TestUtil.collectSorted(new Join(p, scan1(), scan2()));
+            assertFalse(expected.isEmpty());
+            assertEquals(op.toString(), expected, TestUtil.collectSorted(new SortMergeJoin(p, scan1(), scan2())));
+        }
+    }
+
+    /**
+     * Inputs already sorted on the join fields are not sorted again, and a
+     * rewind returns the same tuples.
+     */
+    @Test public void sortedInputsAndRewind() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        List<List<Integer>> expected = TestUtil.collectSorted(new Join(p, scan1(), scan2()));
+
+        SortMergeJoin j = new SortMergeJoin(p, new OrderBy(0, true, scan1()),
+                new OrderBy(1, true, scan2()), true, true);
+        OpIterator[] children = j.getChildren();
+        assertTrue(children[0] instanceof OrderBy);
+        assertTrue(((OrderBy) children[0]).getChildren()[0] instanceof SeqScan);
+        assertEquals(expected, TestUtil.collectSorted(j));
+
+        j.open();
+        while (j.hasNext())
+            j.next();
+        j.rewind();
+        List<List<Integer>> result = TestUtil.drain(j);
+        j.close();
+        assertEquals(expected.size(), result.size());
+    }
+
+    /**
+     * Predicates that cannot be merged are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void notEquals() {
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan1(), scan2());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
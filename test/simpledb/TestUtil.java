@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.common.*;
 import simpledb.execution.OpIterator;
 import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -168,6 +169,55 @@ public class TestUtil {
         }
     }
 
+    /**
+     * @return the tuples it returns from where it is, as lists of integers
+     */
+    public static List<List<Integer>> drain(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> result = new ArrayList<>();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        return result;
+    }
+
+    /**
+     * Open it, read all its tuples and close it.
+     * @return the tuples of it as lists of integers, in the order it returns them
+     */
+    public static List<List<Integer>> collect(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        it.open();
+        List<List<Integer>> result = drain(it);
+        it.close();
+        return result;
+    }
+
+    /**
+     * Like collect, for operators that return their tuples in no
+     * particular order.
+     * @return the tuples of it as lists of integers, sorted by their values
+     */
+    public static List<List<Integer>> collectSorted(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        return sortByValues(collect(it));
+    }
+
+    /**
+     * Sort tuples given as lists of integers by their values, field by field.
+     * @return tuples
+     */
+    public static List<List<Integer>> sortByValues(List<List<Integer>> tuples) {
+        tuples.sort((a, b) -> {
+            for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+                int c = Integer.compare(a.get(i), b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return Integer.compare(a.size(), b.size());
+        });
+        return tuples;
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
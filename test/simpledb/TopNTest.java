@@ -0,0 +1,130 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class TopNTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, 20, null, null, "field");
+        Database.getCatalog().addTable(hf, "topn");
+        tid = new TransactionId();
+    }
+
+    private OpIterator scan() {
+        return new SeqScan(tid, hf.getId(), "t");
+    }
+
+    /**
+     * TopN returns the first tuples of the same ordering as OrderBy, with
+     * ties in the same order.
+     */
+    @Test public void sameAsOrderBy() throws Exception {
+        int[] fields = {0, 1};
+        boolean[] ascs = {false, true};
+        List<List<Integer>> sorted = TestUtil.collect(new OrderBy(fields, ascs, scan()));
+        for (int n : new int[]{0, 1, 37, ROWS, ROWS + 10}) {
+            List<List<Integer>> expected = sorted.subList(0, Math.min(n, ROWS));
+            assertEquals(expected, TestUtil.collect(new TopN(fields, ascs, n, scan())));
+        }
+    }
+
+    /**
+     * Project and Filter stop returning tuples at their limit, a tuple or a
+     * batch at a time.
+     */
+    @Test public void projectAndFilterLimit() throws Exception {
+        Project p = new Project(Arrays.asList(1, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE}, scan());
+        p.setLimit(1500);
+        assertEquals(1500, TestUtil.collect(p).size());
+        assertEquals(1500, countBatchRows(p));
+
+        Filter f = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)), scan());
+        f.setLimit(1100);
+        assertEquals(1100, TestUtil.collect(f).size());
+        assertEquals(1100, countBatchRows(f));
+    }
+
+    private static int countBatchRows(BatchOpIterator it) throws Exception {
+        it.open();
+        int rows = 0;
+        TupleBatch batch;
+        while ((batch = it.nextBatch()) != null)
+            rows += batch.numSelected();
+        it.close();
+        return rows;
+    }
+
+    /**
+     * A LIMIT clause is parsed, and planned as a TopN when there is an
+     * ORDER BY.
+     */
+    @Test public void parseLimit() throws Exception {
+        Parser parser = new Parser();
+        LogicalPlan lp = parser.generateLogicalPlan(tid,
+                "SELECT * FROM topn t ORDER BY t.field0 DESC, t.field1 LIMIT 10;");
+        assertEquals(10, lp.getLimit());
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+        List<List<Integer>> expected = TestUtil.collect(new OrderBy(new int[]{0, 1},
+                new boolean[]{false, true}, scan())).subList(0, 10);
+        assertEquals(expected, TestUtil.collect(plan));
+
+        lp = parser.generateLogicalPlan(tid, "SELECT * FROM topn t limit 5 ;");
+        assertEquals(5, TestUtil.collect(lp.physicalPlan(tid, TableStats.getStatsMap(), false)).size());
+
+        lp = parser.generateLogicalPlan(tid, "SELECT * FROM topn t;");
+        assertEquals(LogicalPlan.NO_LIMIT, lp.getLimit());
+    }
+
+    /**
+     * The LIMIT of a statement applies to its result, not to the rows of
+     * its subqueries.
+     */
+    @Test public void limitWithSubquery() throws Exception {
+        Parser parser = new Parser();
+        LogicalPlan lp = parser.generateLogicalPlan(tid,
+                "SELECT * FROM topn t WHERE t.field0 IN (SELECT k.field0 FROM topn k) "
+                        + "ORDER BY t.field0 DESC, t.field1 LIMIT 10;");
+        List<List<Integer>> expected = TestUtil.collect(new OrderBy(new int[]{0, 1},
+                new boolean[]{false, true}, scan())).subList(0, 10);
+        assertEquals(expected, TestUtil.collect(lp.physicalPlan(tid, TableStats.getStatsMap(), false)));
+
+        // every value is in the subquery, unless it was cut to 5 rows
+        lp = parser.generateLogicalPlan(tid,
+                "SELECT * FROM topn t WHERE t.field0 NOT IN (SELECT k.field0 FROM topn k) LIMIT 5;");
+        assertEquals(0, TestUtil.collect(lp.physicalPlan(tid, TableStats.getStatsMap(), false)).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}
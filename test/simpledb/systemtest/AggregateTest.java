@@ -7,11 +7,14 @@ import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
+import simpledb.Parser;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.execution.OpIterator;
 import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.transaction.TransactionAbortedException;
@@ -121,6 +124,55 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    private static final Aggregator.Op[] MULTIPLE_OPS = {
+            Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX };
+
+    /**
+     * @return for each group of columns 0 and 2, the columns followed by the
+     * SUM, COUNT and MAX of column 1
+     */
+    private List<List<Integer>> aggregateMultiple(List<List<Integer>> tuples) {
+        Map<List<Integer>, List<Integer>> values = new HashMap<>();
+        for (List<Integer> t : tuples) {
+            List<Integer> key = new ArrayList<>();
+            key.add(t.get(0));
+            key.add(t.get(2));
+            values.computeIfAbsent(key, k -> new ArrayList<>()).add(t.get(1));
+        }
+        List<List<Integer>> results = new ArrayList<>();
+        for (Map.Entry<List<Integer>, List<Integer>> e : values.entrySet()) {
+            List<Integer> result = new ArrayList<>(e.getKey());
+            for (Aggregator.Op op : MULTIPLE_OPS)
+                result.add(computeAggregate(e.getValue(), op));
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Several aggregates grouped by two columns, computed in one Aggregate
+     * and planned from a query.
+     */
+    @Test public void testMultiple() throws Exception {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS, 8, null, createdTuples, "field");
+        Database.getCatalog().addTable(table, "multi");
+        List<List<Integer>> expected = aggregateMultiple(createdTuples);
+
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""),
+                new int[]{0, 2}, new int[]{1, 1, 1}, MULTIPLE_OPS, false);
+        SystemTestUtil.matchTuples(ag, expected);
+
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT m.field0, m.field2, SUM(m.field1), COUNT(m.field1), MAX(m.field1) "
+                        + "FROM multi m GROUP BY m.field0, m.field2;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
@@ -3,17 +3,22 @@ package simpledb.systemtest;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.Test;
 
+import simpledb.Parser;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.HeapFile;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -79,6 +84,43 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * IN, NOT IN, EXISTS and NOT EXISTS subqueries return each outer tuple
+     * at most once.
+     */
+    @Test public void testSubqueries() throws Exception {
+        List<List<Integer>> outerTuples = new ArrayList<>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 200, 30, null, outerTuples, "field");
+        Database.getCatalog().addTable(outer, "outer_t");
+        List<List<Integer>> innerTuples = new ArrayList<>();
+        HeapFile inner = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 100, 30, null, innerTuples, "field");
+        Database.getCatalog().addTable(inner, "inner_t");
+
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> t : innerTuples)
+            keys.add(t.get(0));
+        List<List<Integer>> in = new ArrayList<>(), notIn = new ArrayList<>();
+        for (List<Integer> t : outerTuples)
+            (keys.contains(t.get(0)) ? in : notIn).add(t);
+
+        TransactionId tid = new TransactionId();
+        String select = "SELECT o.field0, o.field1 FROM outer_t o WHERE ";
+        String[] queries = {
+                select + "o.field0 IN (SELECT i.field0 FROM inner_t i);",
+                select + "o.field0 NOT IN (SELECT i.field0 FROM inner_t i);",
+                select + "EXISTS (SELECT i.field1 FROM inner_t i WHERE i.field0 = o.field0);",
+                select + "NOT EXISTS (SELECT i.field1 FROM inner_t i WHERE o.field0 = i.field0);",
+        };
+        for (int q = 0; q < queries.length; q++) {
+            OpIterator plan = new Parser().generateLogicalPlan(tid, queries[q])
+                    .physicalPlan(tid, TableStats.getStatsMap(), false);
+            SystemTestUtil.matchTuples(plan, q % 2 == 0 ? in : notIn);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);